@@ -23,16 +23,42 @@ package net.freeutils.httpserver;
 
 import java.io.*;
 import java.lang.annotation.*;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
-import java.util.zip.GZIPOutputStream;
 import javax.net.ServerSocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 
 /**
@@ -149,6 +175,18 @@ public class HTTPServer {
     /** The HTTP status description strings. */
     protected static final String[] statuses = new String[600];
 
+    /** The encoded HTTP status lines (including CRLF), created on first use. */
+    protected static final byte[][] statusLines = new byte[600][];
+
+    /** The encoded Server header line (including CRLF). */
+    protected static final byte[] serverLine = getBytes("Server: JLHTTP/2.5\r\n");
+
+    /** The encoded Date header line (including CRLF) of the current second. */
+    protected static volatile byte[] dateLine;
+
+    /** The time (in whole seconds, as milliseconds) of the current {@link #dateLine}. */
+    protected static volatile long dateLineTime = Long.MIN_VALUE;
+
     static {
         // initialize status descriptions lookup table
         Arrays.fill(statuses, "Unknown Status");
@@ -380,24 +418,48 @@ public class HTTPServer {
      * header set to "chunked".
      * <p>
      * Data is written to the stream by calling the {@link #write(byte[], int, int)}
-     * method, which writes a new chunk per invocation. To end the stream,
-     * the {@link #writeTrailingChunk} method must be called or the stream closed.
+     * method, which writes a new chunk per invocation. If the stream has a buffer,
+     * small writes are coalesced, and a chunk is written only when the buffer
+     * fills up, the stream is flushed, or the trailing chunk is written.
+     * To end the stream, the {@link #writeTrailingChunk} method must be called
+     * or the stream closed.
      */
     public static class ChunkedOutputStream extends FilterOutputStream {
 
+        protected static final byte[] HEX_DIGITS = getBytes("0123456789abcdef");
+
         protected int state; // the current stream state
+        protected final int size; // the buffer size, or zero if unbuffered
+        protected byte[] buf; // allocated on first buffered write
+        protected int count; // the number of buffered bytes
+        protected final byte[] chunkHeader = new byte[20]; // CRLF, up to 16 hex digits, CRLF
 
         /**
-         * Constructs a ChunkedOutputStream with the given underlying stream.
+         * Constructs an unbuffered ChunkedOutputStream with the given underlying stream.
          *
          * @param out the underlying output stream to which the chunked stream
          *        is written
          * @throws NullPointerException if the given stream is null
          */
         public ChunkedOutputStream(OutputStream out) {
+            this(out, 0);
+        }
+
+        /**
+         * Constructs a ChunkedOutputStream with the given underlying stream
+         * and buffer size.
+         *
+         * @param out the underlying output stream to which the chunked stream
+         *        is written
+         * @param size the size of the buffer in which small writes are coalesced
+         *        into a single chunk, or zero if each write is a separate chunk
+         * @throws NullPointerException if the given stream is null
+         */
+        public ChunkedOutputStream(OutputStream out, int size) {
             super(out);
             if (out == null)
                 throw new NullPointerException("output stream is null");
+            this.size = size;
         }
 
         /**
@@ -411,14 +473,36 @@ public class HTTPServer {
         protected void initChunk(long size) throws IOException {
             if (size < 0)
                 throw new IllegalArgumentException("invalid size: " + size);
-            if (state > 0)
-                out.write(CRLF); // end previous chunk
-            else if (state == 0)
+            byte[] b = chunkHeader;
+            int pos = b.length;
+            b[--pos] = '\n';
+            b[--pos] = '\r';
+            do {
+                b[--pos] = HEX_DIGITS[(int)size & 0x0F];
+                size >>>= 4;
+            } while (size > 0);
+            if (state > 0) { // end previous chunk
+                b[--pos] = '\n';
+                b[--pos] = '\r';
+            } else if (state == 0) {
                 state = 1; // start first chunk
-            else
+            } else {
                 throw new IOException("chunked stream has already ended");
-            out.write(getBytes(Long.toHexString(size)));
-            out.write(CRLF);
+            }
+            out.write(b, pos, b.length - pos);
+        }
+
+        /**
+         * Writes the buffered data (if any) as a chunk.
+         *
+         * @throws IOException if an error occurs
+         */
+        protected void writeBuffer() throws IOException {
+            if (count > 0) {
+                initChunk(count);
+                out.write(buf, 0, count);
+                count = 0;
+            }
         }
 
         /**
@@ -428,6 +512,7 @@ public class HTTPServer {
          * @throws IOException if an error occurs
          */
         public void writeTrailingChunk(Headers headers) throws IOException {
+            writeBuffer();
             initChunk(0); // zero-sized chunk marks the end of the stream
             if (headers == null)
                 out.write(CRLF); // empty header block
@@ -437,20 +522,30 @@ public class HTTPServer {
         }
 
         /**
-         * Writes a chunk containing the given byte. This method initializes
-         * a new chunk of size 1, and then writes the byte as the chunk data.
+         * Writes a chunk containing the given byte. If the stream is unbuffered,
+         * this method initializes a new chunk of size 1, and then writes the byte
+         * as the chunk data. Otherwise, the byte is buffered.
          *
          * @param b the byte to write as a chunk
          * @throws IOException if an error occurs
          */
         @Override
         public void write(int b) throws IOException {
-            write(new byte[] { (byte)b }, 0, 1);
+            if (size == 0 || state < 0 || count == size) {
+                write(new byte[] { (byte)b }, 0, 1);
+            } else {
+                if (buf == null)
+                    buf = new byte[size];
+                buf[count++] = (byte)b;
+            }
         }
 
         /**
-         * Writes a chunk containing the given bytes. This method initializes
-         * a new chunk of the given size, and then writes the chunk data.
+         * Writes a chunk containing the given bytes. If the stream is unbuffered,
+         * this method initializes a new chunk of the given size, and then writes
+         * the chunk data. Otherwise, the bytes are buffered if they fit in the
+         * buffer, or else they are written along with the buffered data as
+         * a single chunk.
          *
          * @param b an array containing the bytes to write
          * @param off the offset within the array where the data starts
@@ -461,11 +556,35 @@ public class HTTPServer {
          */
         @Override
         public void write(byte[] b, int off, int len) throws IOException {
-            if (len > 0) // zero-sized chunk is the trailing chunk
-                initChunk(len);
+            if (off < 0 || len < 0 || off + len > b.length || off + len < 0)
+                throw new IndexOutOfBoundsException();
+            if (size > 0 && count + len <= size && state >= 0) { // coalesce small writes
+                if (buf == null)
+                    buf = new byte[size];
+                System.arraycopy(b, off, buf, count, len);
+                count += len;
+                return;
+            }
+            if (count + len > 0) // zero-sized chunk is the trailing chunk
+                initChunk(count + len);
+            if (count > 0)
+                out.write(buf, 0, count);
+            count = 0;
             out.write(b, off, len);
         }
 
+        /**
+         * Writes the buffered data (if any) as a chunk,
+         * and flushes the underlying stream.
+         *
+         * @throws IOException if an error occurs
+         */
+        @Override
+        public void flush() throws IOException {
+            writeBuffer();
+            out.flush();
+        }
+
         /**
          * Writes the trailing chunk if necessary, and closes the underlying stream.
          *
@@ -480,1431 +599,5523 @@ public class HTTPServer {
     }
 
     /**
-     * The {@code MultipartInputStream} decodes an InputStream whose data has
-     * a "multipart/*" content type (see RFC 2046), providing the underlying
-     * data of its various parts.
-     * <p>
-     * The {@code InputStream} methods (e.g. {@link #read}) relate only to
-     * the current part, and the {@link #nextPart} method advances to the
-     * beginning of the next part.
+     * The {@code ChannelInputStream} provides a buffered InputStream view of a
+     * (blocking) ReadableByteChannel. Unlike a BufferedInputStream, it is not
+     * synchronized, and its buffer may be shared with other code that reads
+     * from the same channel, e.g. a selector that reads ahead while the
+     * connection is idle. The buffer is always kept in "read mode", i.e. its
+     * position and limit mark the beginning and end of the unread data.
      */
-    public static class MultipartInputStream extends FilterInputStream {
+    public static class ChannelInputStream extends InputStream {
 
-        protected final byte[] boundary; // including leading CRLF--
-        protected final byte[] buf = new byte[4096];
-        protected int head, tail; // indices of current part's data in buf
-        protected int end; // last index of input data read into buf
-        protected int len; // length of found boundary
-        protected int state; // initial, started data, start boundary, EOS, last boundary, epilogue
+        protected final ReadableByteChannel ch;
+        protected final ByteBuffer buf;
 
         /**
-         * Constructs a MultipartInputStream with the given underlying stream.
+         * Constructs a ChannelInputStream with the given underlying channel and buffer.
          *
-         * @param in the underlying multipart stream
-         * @param boundary the multipart boundary
-         * @throws NullPointerException if the given stream or boundary is null
-         * @throws IllegalArgumentException if the given boundary's size is not
-         *         between 1 and 70
+         * @param ch the underlying channel
+         * @param buf the buffer holding unread data (in read mode)
+         * @throws NullPointerException if the given channel is null
          */
-        protected MultipartInputStream(InputStream in, byte[] boundary) {
-            super(in);
-            int len = boundary.length;
-            if (len == 0 || len > 70)
-                throw new IllegalArgumentException("invalid boundary length");
-            this.boundary = new byte[len + 4]; // CRLF--boundary
-            System.arraycopy(CRLF, 0, this.boundary, 0, 2);
-            this.boundary[2] = this.boundary[3] = '-';
-            System.arraycopy(boundary, 0, this.boundary, 4, len);
+        public ChannelInputStream(ReadableByteChannel ch, ByteBuffer buf) {
+            if (ch == null)
+                throw new NullPointerException("channel is null");
+            this.ch = ch;
+            this.buf = buf;
+        }
+
+        /**
+         * Constructs a ChannelInputStream with the given underlying channel
+         * and a new buffer of the given size.
+         *
+         * @param ch the underlying channel
+         * @param size the buffer size
+         * @throws NullPointerException if the given channel is null
+         */
+        public ChannelInputStream(ReadableByteChannel ch, int size) {
+            this(ch, ByteBuffer.allocate(size));
+            buf.flip(); // empty buffer in read mode
+        }
+
+        /**
+         * Reads more data from the underlying channel if the buffer is empty.
+         *
+         * @return true if there is available data, or false if the end
+         *         of stream has been reached
+         * @throws IOException if an error occurs
+         */
+        protected boolean fill() throws IOException {
+            if (buf.hasRemaining())
+                return true;
+            buf.clear();
+            int count;
+            try {
+                do { count = ch.read(buf); } while (count == 0);
+            } finally {
+                buf.flip();
+            }
+            return count > 0;
         }
 
         @Override
         public int read() throws IOException {
-            if (!fill())
-                return -1;
-            return buf[head++] & 0xFF;
+            return fill() ? buf.get() & 0xFF : -1;
         }
 
         @Override
         public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
             if (!fill())
                 return -1;
-            len = Math.min(tail - head, len);
-            System.arraycopy(buf, head, b, off, len); // throws IOOBE as necessary
-            head += len;
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len); // throws IOOBE as necessary
             return len;
         }
 
+        /**
+         * Reads bytes into the given array until the given delimiter byte is
+         * read, the given number of bytes is read, or the end of stream is
+         * reached. The buffered data is scanned and copied in bulk rather
+         * than byte by byte.
+         *
+         * @param b the array into which the data is read
+         * @param off the offset within the array at which the data is written
+         * @param len the maximum number of bytes to read
+         * @param delim the delimiter byte value, which is read (inclusive)
+         * @return the number of bytes read, or -1 if the end of stream
+         *         is reached before any byte is read
+         * @throws IOException if an error occurs
+         */
+        public int readUntil(byte[] b, int off, int len, int delim) throws IOException {
+            byte d = (byte)delim;
+            int total = 0;
+            while (total < len) {
+                if (!fill())
+                    return total > 0 ? total : -1;
+                int pos = buf.position();
+                int count = Math.min(len - total, buf.remaining());
+                boolean found = false;
+                if (buf.hasArray()) {
+                    byte[] a = buf.array();
+                    for (int i = buf.arrayOffset() + pos, end = i + count; i < end; i++) {
+                        if (a[i] == d) {
+                            count = i - buf.arrayOffset() - pos + 1;
+                            found = true;
+                            break;
+                        }
+                    }
+                } else {
+                    for (int i = pos, end = pos + count; i < end; i++) {
+                        if (buf.get(i) == d) {
+                            count = i - pos + 1;
+                            found = true;
+                            break;
+                        }
+                    }
+                }
+                buf.get(b, off + total, count); // throws IOOBE as necessary
+                total += count;
+                if (found)
+                    break;
+            }
+            return total;
+        }
+
         @Override
         public long skip(long len) throws IOException {
             if (len <= 0 || !fill())
                 return 0;
-            len = Math.min(tail - head, len);
-            head += len;
+            len = Math.min(len, buf.remaining());
+            buf.position(buf.position() + (int)len);
             return len;
         }
 
         @Override
-        public int available() throws IOException {
-            return tail - head;
+        public int available() {
+            return buf.remaining();
         }
 
         @Override
-        public boolean markSupported() {
-            return false;
+        public void close() throws IOException {
+            ch.close();
+        }
+    }
+
+    /**
+     * The {@code ChannelOutputStream} provides an optionally buffered OutputStream
+     * view of a (blocking) WritableByteChannel. Unlike a BufferedOutputStream or
+     * the stream returned by {@link Channels#newOutputStream}, it is not synchronized.
+     */
+    public static class ChannelOutputStream extends OutputStream {
+
+        protected final WritableByteChannel ch;
+        protected final ByteBuffer buf; // in write mode, or null if unbuffered
+        protected volatile CompletableFuture<Integer> async; // result of an async handler which may still use it
+
+        /**
+         * Constructs a ChannelOutputStream with the given underlying channel.
+         *
+         * @param ch the underlying channel
+         * @param size the buffer size, or zero if the stream is unbuffered
+         * @throws NullPointerException if the given channel is null
+         */
+        public ChannelOutputStream(WritableByteChannel ch, int size) {
+            this(ch, size > 0 ? ByteBuffer.allocate(size) : null);
         }
 
         /**
-         * Advances the stream position to the beginning of the next part.
-         * Data read before calling this method for the first time is the preamble,
-         * and data read after this method returns false is the epilogue.
+         * Constructs a ChannelOutputStream with the given underlying channel and buffer.
          *
-         * @return true if successful, or false if there are no more parts
+         * @param ch the underlying channel
+         * @param buf the (empty) buffer in write mode, or null if the stream is unbuffered
+         * @throws NullPointerException if the given channel is null
+         */
+        public ChannelOutputStream(WritableByteChannel ch, ByteBuffer buf) {
+            if (ch == null)
+                throw new NullPointerException("channel is null");
+            this.ch = ch;
+            this.buf = buf;
+        }
+
+        /**
+         * Writes all remaining data in the given buffer to the underlying channel.
+         *
+         * @param src the buffer containing the data to write
          * @throws IOException if an error occurs
          */
-        public boolean nextPart() throws IOException {
-            while (skip(buf.length) != 0); // skip current part (until boundary)
-            head = tail += len; // the next part starts right after boundary
-            state |= 1; // started data (after first boundary)
-            if (state >= 8) { // found last boundary
-                state |= 0x10; // now beyond last boundary (epilogue)
-                return false;
-            }
-            findBoundary(); // update indices
-            return true;
+        protected void writeFully(ByteBuffer src) throws IOException {
+            while (src.hasRemaining())
+                ch.write(src);
         }
 
         /**
-         * Fills the buffer with more data from the underlying stream.
+         * Writes all buffered data to the underlying channel.
          *
-         * @return true if there is available data for the current part,
-         *         or false if the current part's end has been reached
-         * @throws IOException if an error occurs or the input format is invalid
+         * @throws IOException if an error occurs
          */
-        protected boolean fill() throws IOException {
-            // check if we already have more available data
-            if (head != tail) // remember that if we continue, head == tail below
-                return true;
-            // if there's no more room, shift extra unread data to beginning of buffer
-            if (tail > buf.length - 256) { // max boundary + whitespace supported size
-                System.arraycopy(buf, tail, buf, 0, end -= tail);
-                head = tail = 0;
+        protected void flushBuffer() throws IOException {
+            if (buf != null && buf.position() > 0) {
+                buf.flip();
+                try {
+                    writeFully(buf);
+                } finally {
+                    buf.compact(); // back to write mode, retaining unwritten data
+                }
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (buf == null) {
+                write(new byte[] { (byte)b }, 0, 1);
+            } else {
+                if (!buf.hasRemaining())
+                    flushBuffer();
+                buf.put((byte)b);
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (buf != null && len < buf.capacity()) { // buffer small writes
+                if (len > buf.remaining())
+                    flushBuffer();
+                buf.put(b, off, len); // throws IOOBE as necessary
+            } else { // write large ones directly
+                flushBuffer();
+                writeFully(ByteBuffer.wrap(b, off, len)); // throws IOOBE as necessary
             }
-            // read more data and look for boundary (or potential partial boundary)
-            int read;
-            do {
-                read = super.read(buf, end, buf.length - end);
-                if (read < 0)
-                    state |= 4; // end of stream (EOS)
-                else
-                    end += read;
-                findBoundary(); // updates tail and length to next potential boundary
-                // if we found a partial boundary with no data before it, we must
-                // continue reading to determine if there is more data or not
-            } while (read > 0 && tail == head && len == 0);
-            // update and validate state
-            if (tail != 0) // anything but a boundary right at the beginning
-                state |= 1; // started data (preamble or after boundary)
-            if (state < 8 && len > 0)
-                state |= 2; // found start boundary
-            if ((state & 6) == 4 // EOS but no start boundary found
-                || len == 0 && ((state & 0xFC) == 4 // EOS but no last and no more boundaries
-                    || read == 0 && tail == head)) // boundary longer than buffer
-                        throw new IOException("missing boundary");
-            if (state >= 0x10) // in epilogue
-                tail = end; // ignore boundaries, return everything
-            return tail > head; // available data in current part
         }
 
         /**
-         * Finds the first (potential) boundary within the buffer's remaining data.
-         * Updates tail, length and state fields accordingly.
+         * Transfers data from the given file channel to the underlying channel,
+         * after writing all buffered data. This allows the platform to use its
+         * most efficient means of transfer, e.g. sendfile, without copying
+         * the data to and from user space. Data which fits in the remaining
+         * buffer space is buffered instead, so that it can be written along
+         * with subsequent data (e.g. pipelined responses).
          *
-         * @throws IOException if an error occurs or the input format is invalid
+         * @param src the file channel from which the data is transferred
+         * @param position the file position at which the transfer begins
+         * @param count the number of bytes to transfer
+         * @throws IOException if an error occurs or the file ends before
+         *         the requested number of bytes have been transferred
          */
-        protected void findBoundary() throws IOException {
-            // see RFC2046#5.1.1 for boundary syntax
-            len = 0;
-            int off = tail - ((state & 1) != 0 || buf[0] != '-' ? 0 : 2); // skip initial CRLF?
-            for (int end = this.end; tail < end; tail++, off = tail) {
-                int j = tail; // end of potential boundary
-                // try to match boundary value (leading CRLF is optional at first boundary)
-                while (j < end && j - off < boundary.length && buf[j] == boundary[j - off])
-                    j++;
-                // return potential partial boundary which is cut off at end of current data
-                if (j + 1 >= end) // at least two more chars needed for full boundary (CRLF or --)
-                    return;
-                // if we found the boundary value, expand selection to include full line
-                if (j - off == boundary.length) {
-                    // check if last boundary of entire multipart
-                    if (buf[j] == '-' && buf[j + 1] == '-') {
-                        j += 2;
-                        state |= 8; // found last boundary that ends multipart
+        public void transferFrom(FileChannel src, long position, long count) throws IOException {
+            if (buf != null && count <= buf.remaining()) {
+                int limit = buf.limit();
+                buf.limit(buf.position() + (int)count);
+                try {
+                    while (buf.hasRemaining()) {
+                        int read = src.read(buf, position);
+                        if (read < 0)
+                            throw new IOException("unexpected end of file");
+                        position += read;
                     }
-                    // allow linear whitespace after boundary
-                    while (j < end && (buf[j] == ' ' || buf[j] == '\t'))
-                        j++;
-                    // check for CRLF (required, except in last boundary with no epilogue)
-                    if (j + 1 < end && buf[j] == '\r' && buf[j + 1] == '\n') // found CRLF
-                        len = j - tail + 2; // including optional whitespace and CRLF
-                    else if (j + 1 < end || (state & 4) != 0 && j + 1 == end) // should have found or never will
-                        throw new IOException("boundary must end with CRLF");
-                    else if ((state & 4) != 0) // last boundary with no CRLF at end of data is valid
-                        len = j - tail;
-                    return;
+                } finally {
+                    buf.limit(limit);
                 }
+                return;
+            }
+            flushBuffer();
+            while (count > 0) {
+                long transferred = transfer(src, position, count);
+                if (transferred <= 0)
+                    throw new IOException("unexpected end of file");
+                position += transferred;
+                count -= transferred;
+            }
+        }
+
+        /**
+         * Transfers some data from the given file channel to the underlying channel.
+         *
+         * @param src the file channel from which the data is transferred
+         * @param position the file position at which the transfer begins
+         * @param count the maximum number of bytes to transfer
+         * @return the number of bytes transferred, which is zero only
+         *         if the given position is beyond the end of the file
+         * @throws IOException if an error occurs
+         */
+        protected long transfer(FileChannel src, long position, long count) throws IOException {
+            return src.transferTo(position, count, ch);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                ch.close();
             }
         }
     }
 
     /**
-     * The {@code MultipartIterator} iterates over the parts of a multipart/form-data request.
-     * <p>
-     * For example, to support file upload from a web browser:
-     * <ol>
-     * <li>Create an HTML form which includes an input field of type "file", attributes
-     *     method="post" and enctype="multipart/form-data", and an action URL of your choice,
-     *     for example action="/upload". This form can be served normally like any other
-     *     resource, e.g. from an HTML file on disk.
-     * <li>Add a context handler for the action path ("/upload" in this example), using either
-     *     the explicit {@link VirtualHost#addContext} method or the {@link Context} annotation.
-     * <li>In the context handler implementation, construct a {@code MultipartIterator} from
-     *     the client {@code Request}.
-     * <li>Iterate over the form {@link Part}s, processing each named field as appropriate -
-     *     for the file input field, read the uploaded file using the body input stream.
-     * </ol>
+     * The {@code FenceOutputStream} passes data through to an underlying stream
+     * until it is {@link #fence fenced}, after which all writes fail. It is given
+     * to asynchronous handlers, so that once a handler times out, its late writes
+     * cannot reach the connection, which is then used for other data.
      */
-    public static class MultipartIterator implements Iterator<MultipartIterator.Part> {
+    public static class FenceOutputStream extends FilterOutputStream {
+
+        // not synchronized, so that virtual threads are not pinned while writing
+        protected final ReentrantLock lock = new ReentrantLock();
+        protected boolean fenced; // guarded by lock
+        protected boolean written; // whether anything was written (guarded by lock)
 
         /**
-         * The {@code Part} class encapsulates a single part of the multipart.
+         * Constructs a FenceOutputStream with the given underlying stream.
+         *
+         * @param out the underlying stream
          */
-        public static class Part {
-
-            public String name;
-            public String filename;
-            public Headers headers;
-            public InputStream body;
+        public FenceOutputStream(OutputStream out) {
+            super(out);
+        }
 
-            /**
-             * Returns the part's name (form field name).
-             *
-             * @return the part's name
-             */
-            public String getName() { return name; }
+        /**
+         * Returns the underlying stream.
+         *
+         * @return the underlying stream
+         */
+        public OutputStream getOutputStream() {
+            return out;
+        }
 
-            /**
-             * Returns the part's filename (original filename entered in file form field).
-             *
-             * @return the part's filename, or null if there is none
-             */
-            public String getFilename() { return filename; }
-
-            /**
-             * Returns the part's headers.
-             *
-             * @return the part's headers
-             */
-            public Headers getHeaders() { return headers; }
-
-            /**
-             * Returns the part's body (form field value).
-             *
-             * @return the part's body
-             */
-            public InputStream getBody() { return body; }
-
-            /***
-             * Returns the part's body as a string. If the part
-             * headers do not specify a charset, UTF-8 is used.
-             *
-             * @return the part's body as a string
-             * @throws IOException if an IO error occurs
-             */
-            public String getString() throws IOException {
-                String charset = headers.getParams("Content-Type").get("charset");
-                return readToken(body, -1, charset == null ? "UTF-8" : charset, 8192);
+        /**
+         * Fences this stream, so that all subsequent writes fail.
+         * If a write is in progress, this waits for it to complete.
+         *
+         * @return whether anything was written to the stream before it was fenced
+         */
+        public boolean fence() {
+            lock.lock();
+            try {
+                fenced = true;
+                return written;
+            } finally {
+                lock.unlock();
             }
         }
 
-        protected final MultipartInputStream in;
-        protected boolean next;
-
         /**
-         * Creates a new MultipartIterator from the given request.
+         * Acquires the lock, ensuring the stream is not fenced.
          *
-         * @param req the multipart/form-data request
-         * @throws IOException if an IO error occurs
-         * @throws IllegalArgumentException if the given request's content type
-         *         is not multipart/form-data, or is missing the boundary
+         * @throws IOException if the stream is fenced
          */
-        public MultipartIterator(Request req) throws IOException {
-            Map<String, String> ct = req.getHeaders().getParams("Content-Type");
-            if (!ct.containsKey("multipart/form-data"))
-                throw new IllegalArgumentException("Content-Type is not multipart/form-data");
-            String boundary = ct.get("boundary"); // should be US-ASCII
-            if (boundary == null)
-                throw new IllegalArgumentException("Content-Type is missing boundary");
-            in = new MultipartInputStream(req.getBody(), getBytes(boundary));
+        protected void lock() throws IOException {
+            lock.lock();
+            if (fenced) {
+                lock.unlock();
+                throw new IOException("response is no longer available (timed out or closed)");
+            }
         }
 
-        public boolean hasNext() {
+        @Override
+        public void write(int b) throws IOException {
+            lock();
             try {
-                return next || (next = in.nextPart());
-            } catch (IOException ioe) {
-                throw new RuntimeException(ioe);
+                written = true;
+                out.write(b);
+            } finally {
+                lock.unlock();
             }
         }
 
-        public Part next() {
-            if (!hasNext())
-                throw new NoSuchElementException();
-            next = false;
-            Part p = new Part();
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            lock();
             try {
-                p.headers = readHeaders(in);
-            } catch (IOException ioe) {
-                throw new RuntimeException(ioe);
+                written = true;
+                out.write(b, off, len);
+            } finally {
+                lock.unlock();
             }
-            Map<String, String> cd = p.headers.getParams("Content-Disposition");
-            p.name = cd.get("name");
-            p.filename = cd.get("filename");
-            p.body = in;
-            return p;
         }
 
-        public void remove() {
-            throw new UnsupportedOperationException();
+        @Override
+        public void flush() throws IOException {
+            lock();
+            try {
+                out.flush();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            lock();
+            try {
+                out.close();
+            } finally {
+                lock.unlock();
+            }
         }
     }
 
     /**
-     * The {@code VirtualHost} class represents a virtual host in the server.
+     * The {@code StreamChannel} adapts a pair of blocking streams to the
+     * ByteChannel interface. Unlike the channels returned by
+     * {@link Channels#newChannel}, it is not synchronized. Heap (array-backed)
+     * buffers are accessed directly, while others are copied.
      */
-    public static class VirtualHost {
+    public static class StreamChannel implements ByteChannel {
+
+        protected final InputStream in;
+        protected final OutputStream out;
+        protected boolean open = true;
 
         /**
-         * The {@code ContextInfo} class holds a single context's information.
+         * Constructs a StreamChannel with the given underlying streams.
+         *
+         * @param in the stream from which the channel reads
+         * @param out the stream to which the channel writes
          */
-        public class ContextInfo {
-
-            protected final String path;
-            protected final Map<String, ContextHandler> handlers =
-                new ConcurrentHashMap<String, ContextHandler>(2);
+        public StreamChannel(InputStream in, OutputStream out) {
+            this.in = in;
+            this.out = out;
+        }
 
-            /**
-             * Constructs a ContextInfo with the given context path.
-             *
-             * @param path the context path (without trailing slash)
-             */
-            public ContextInfo(String path) {
-                this.path = path;
+        public int read(ByteBuffer dst) throws IOException {
+            if (!dst.hasArray()) {
+                byte[] b = new byte[Math.min(dst.remaining(), 4096)];
+                int count = in.read(b, 0, b.length);
+                if (count > 0)
+                    dst.put(b, 0, count);
+                return count;
             }
+            int count = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+            if (count > 0)
+                dst.position(dst.position() + count);
+            return count;
+        }
 
-            /**
-             * Returns the context path.
-             *
-             * @return the context path, or null if there is none
-             */
-            public String getPath() {
-                return path;
+        public int write(ByteBuffer src) throws IOException {
+            int count = src.remaining();
+            if (!src.hasArray()) {
+                byte[] b = new byte[Math.min(count, 4096)];
+                while (src.hasRemaining()) {
+                    int len = Math.min(b.length, src.remaining());
+                    src.get(b, 0, len);
+                    out.write(b, 0, len);
+                }
+                return count;
             }
+            out.write(src.array(), src.arrayOffset() + src.position(), count);
+            src.position(src.limit());
+            return count;
+        }
 
-            /**
-             * Returns the map of supported HTTP methods and their corresponding handlers.
-             *
-             * @return the map of supported HTTP methods and their corresponding handlers
-             */
-            public Map<String, ContextHandler> getHandlers() {
-                return handlers;
-            }
+        public boolean isOpen() {
+            return open;
+        }
 
-            /**
-             * Adds (or replaces) a context handler for the given HTTP methods.
-             *
-             * @param handler the context handler
-             * @param methods the HTTP methods supported by the handler (default is "GET")
-             */
-            public void addHandler(ContextHandler handler, String... methods) {
-                if (methods.length == 0)
-                    methods = new String[] { "GET" };
-                for (String method : methods) {
-                    handlers.put(method, handler);
-                    VirtualHost.this.methods.add(method); // it's now supported by server
-                }
+        public void close() throws IOException {
+            open = false;
+            try {
+                in.close();
+            } finally {
+                out.close();
             }
         }
+    }
 
-        protected final String name;
-        protected final Set<String> aliases = new CopyOnWriteArraySet<String>();
-        protected volatile String directoryIndex = "index.html";
-        protected volatile boolean allowGeneratedIndex;
-        protected final Set<String> methods = new CopyOnWriteArraySet<String>();
-        protected final ContextInfo emptyContext = new ContextInfo(null);
-        protected final ConcurrentMap<String, ContextInfo> contexts =
-            new ConcurrentHashMap<String, ContextInfo>();
+    /**
+     * The {@code TLSChannel} provides TLS over a non-blocking socket channel
+     * using an {@link SSLEngine}. Like the underlying channel, its read and write
+     * methods do not block: they return zero if they cannot proceed until the
+     * underlying channel is ready for the operations returned by
+     * {@link #getInterestOps}, including during the handshake (which is
+     * performed as needed by the read and write methods).
+     * <p>
+     * Its network and application buffers are taken from the given pool,
+     * whose buffer size must be at least {@link #getBufferSize}, and are
+     * returned to it when the channel is closed.
+     */
+    public static class TLSChannel implements ByteChannel {
+
+        protected static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+        protected final SocketChannel ch;
+        protected final SSLEngine engine;
+        protected final BufferPool pool;
+        protected final ByteBuffer netIn; // incoming encrypted data, in write mode
+        protected final ByteBuffer netOut; // outgoing encrypted data, in read mode
+        protected final ByteBuffer appIn; // incoming decrypted data, in read mode
+        protected int interestOps; // the operations the last blocked call waits for
+        protected boolean eof; // whether the end of the underlying stream was reached
+        protected boolean closed;
+        protected HandshakeMetrics metrics; // or null
+        protected long handshakeStart; // time at which the current handshake started, or 0
+        protected long handshakeStartNanos;
 
         /**
-         * Constructs a VirtualHost with the given name.
+         * Constructs a TLSChannel over the given channel, and begins the handshake.
          *
-         * @param name the host's name, or null if it is the default host
+         * @param ch the underlying socket channel (in non-blocking mode)
+         * @param engine the engine performing the TLS protocol
+         * @param pool the pool from which the channel's buffers are taken
+         * @throws IOException if an error occurs
+         * @throws IllegalArgumentException if the pool buffers are too small
          */
-        public VirtualHost(String name) {
-            this.name = name;
-            contexts.put("*", new ContextInfo(null)); // for "OPTIONS *"
+        public TLSChannel(SocketChannel ch, SSLEngine engine, BufferPool pool) throws IOException {
+            if (pool.getBufferSize() < getBufferSize(engine))
+                throw new IllegalArgumentException("buffer size is too small: " + pool.getBufferSize());
+            this.ch = ch;
+            this.engine = engine;
+            this.pool = pool;
+            netIn = pool.get();
+            netOut = pool.get();
+            netOut.flip();
+            appIn = pool.get();
+            appIn.flip();
+            engine.beginHandshake();
         }
 
         /**
-         * Returns this host's name.
+         * Returns the minimum buffer size required by the given engine,
+         * i.e. the larger of its packet and application buffer sizes.
          *
-         * @return this host's name, or null if it is the default host
+         * @param engine the engine
+         * @return the minimum buffer size
          */
-        public String getName() {
-            return name;
+        public static int getBufferSize(SSLEngine engine) {
+            SSLSession session = engine.getSession();
+            return Math.max(session.getPacketBufferSize(), session.getApplicationBufferSize());
         }
 
         /**
-         * Adds an alias for this host.
+         * Returns the engine performing the TLS protocol.
          *
-         * @param alias the alias
+         * @return the engine
          */
-        public void addAlias(String alias) {
-            aliases.add(alias);
+        public SSLEngine getEngine() {
+            return engine;
         }
 
         /**
-         * Returns this host's aliases.
+         * Sets the metrics in which this channel's handshakes are recorded.
          *
-         * @return the (unmodifiable) set of aliases (which may be empty)
+         * @param metrics the metrics, or null
          */
-        public Set<String> getAliases() {
-            return Collections.unmodifiableSet(aliases);
+        public void setHandshakeMetrics(HandshakeMetrics metrics) {
+            this.metrics = metrics;
         }
 
         /**
-         * Sets the directory index file. For every request whose URI ends with
-         * a '/' (i.e. a directory), the index file is appended to the path,
-         * and the resulting resource is served if it exists. If it does not
-         * exist, an auto-generated index for the requested directory may be
-         * served, depending on whether {@link #setAllowGeneratedIndex
-         * a generated index is allowed}, otherwise an error is returned.
-         * The default directory index file is "index.html".
+         * Returns the {@link SelectionKey} operations which the underlying
+         * channel must be ready for before the last call that returned zero
+         * can proceed.
          *
-         * @param directoryIndex the directory index file, or null if no
-         *        index file should be used
+         * @return the operations to wait for
          */
-        public void setDirectoryIndex(String directoryIndex) {
-            this.directoryIndex = directoryIndex;
+        public int getInterestOps() {
+            return interestOps;
         }
 
         /**
-         * Gets this host's directory index file.
+         * Returns whether a handshake is in progress.
          *
-         * @return the directory index file, or null
+         * @return whether a handshake is in progress
          */
-        public String getDirectoryIndex() {
-            return directoryIndex;
+        public boolean isHandshaking() {
+            HandshakeStatus status = engine.getHandshakeStatus();
+            return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
         }
 
         /**
-         * Sets whether auto-generated indices are allowed. If false, and a
-         * directory resource is requested, an error will be returned instead.
+         * Returns whether incoming data has been read from the underlying
+         * channel but not yet returned by the read method.
          *
-         * @param allowed specifies whether generated indices are allowed
+         * @return whether there is buffered incoming data
          */
-        public void setAllowGeneratedIndex(boolean allowed) {
-            this.allowGeneratedIndex = allowed;
+        public boolean hasBufferedData() {
+            return appIn.hasRemaining() || netIn.position() > 0;
         }
 
         /**
-         * Returns whether auto-generated indices are allowed.
+         * Performs the handshake until it completes or cannot proceed without blocking,
+         * and records it in the {@link #setHandshakeMetrics metrics} once it ends.
          *
-         * @return whether auto-generated indices are allowed
+         * @return true if the handshake is complete, false if it must be resumed
+         *         once the channel is ready for the {@link #getInterestOps interest ops}
+         * @throws IOException if an error occurs or the connection is closed
          */
-        public boolean isAllowGeneratedIndex() {
-            return allowGeneratedIndex;
+        public boolean handshake() throws IOException {
+            if (handshakeStart == 0 && isHandshaking()) {
+                handshakeStart = System.currentTimeMillis();
+                handshakeStartNanos = System.nanoTime();
+            }
+            try {
+                if (!doHandshake())
+                    return false;
+            } catch (IOException ioe) {
+                if (metrics != null && handshakeStart != 0)
+                    metrics.recordFailure();
+                handshakeStart = 0;
+                throw ioe;
+            }
+            if (metrics != null && handshakeStart != 0)
+                metrics.record(engine.getSession(), handshakeStart, System.nanoTime() - handshakeStartNanos);
+            handshakeStart = 0;
+            return true;
         }
 
         /**
-         * Returns all HTTP methods explicitly supported by at least one context
-         * (this may or may not include the methods with required or built-in support).
+         * Performs the handshake until it completes or cannot proceed without blocking.
+         * Delegated tasks are run by the calling thread.
          *
-         * @return all HTTP methods explicitly supported by at least one context
+         * @return true if the handshake is complete, false if it must be resumed
+         *         once the channel is ready for the {@link #getInterestOps interest ops}
+         * @throws IOException if an error occurs or the connection is closed
          */
-        public Set<String> getMethods() {
-            return methods;
+        protected boolean doHandshake() throws IOException {
+            while (true) {
+                if (!flush())
+                    return false;
+                switch (engine.getHandshakeStatus()) {
+                    case NOT_HANDSHAKING:
+                    case FINISHED:
+                        return true;
+                    case NEED_TASK:
+                        Runnable task;
+                        while ((task = engine.getDelegatedTask()) != null)
+                            task.run();
+                        break;
+                    case NEED_WRAP:
+                        wrap(EMPTY);
+                        break;
+                    default: // NEED_UNWRAP
+                        if (!unwrap()) {
+                            if (eof)
+                                throw new EOFException("connection closed during handshake");
+                            return false;
+                        }
+                }
+            }
         }
 
         /**
-         * Returns the context handler for the given path.
-         * <p>
-         * If a context is not found for the given path, the search is repeated for
-         * its parent path, and so on until a base context is found. If neither the
-         * given path nor any of its parents has a context, an empty context is returned.
+         * Decrypts a single record from the incoming network data into the
+         * application buffer, reading more data from the channel if needed.
          *
-         * @param path the context's path
-         * @return the context info for the given path, or an empty context if none exists
+         * @return true if a record was processed, or false if more data must be
+         *         read and the channel is not ready, or the end of stream was reached,
+         *         or the application buffer must first be drained by the reader
+         *         (e.g. when a handshake started by a write needs to read a record)
+         * @throws IOException if an error occurs
          */
-        public ContextInfo getContext(String path) {
-            // all context paths are without trailing slash
-            for (path = trimRight(path, '/'); path != null; path = getParentPath(path)) {
-                ContextInfo info = contexts.get(path);
-                if (info != null)
-                    return info;
+        protected boolean unwrap() throws IOException {
+            while (true) {
+                SSLEngineResult result;
+                netIn.flip();
+                appIn.compact();
+                try {
+                    result = engine.unwrap(netIn, appIn);
+                } finally {
+                    netIn.compact();
+                    appIn.flip();
+                }
+                switch (result.getStatus()) {
+                    case OK:
+                        return true;
+                    case CLOSED: // close_notify received
+                        eof = true;
+                        return false;
+                    case BUFFER_UNDERFLOW:
+                        if (!netIn.hasRemaining())
+                            throw new SSLException("record exceeds buffer size");
+                        int count = ch.read(netIn);
+                        if (count < 0)
+                            eof = true;
+                        if (count <= 0) {
+                            interestOps = SelectionKey.OP_READ;
+                            return false;
+                        }
+                        break;
+                    default: // BUFFER_OVERFLOW
+                        if (!appIn.hasRemaining())
+                            throw new SSLException("record exceeds buffer size");
+                        interestOps = SelectionKey.OP_READ; // undelivered data must be read first
+                        return false;
+                }
             }
-            return emptyContext;
         }
 
         /**
-         * Adds a context and its corresponding context handler to this server.
-         * Paths are normalized by removing trailing slashes (except the root).
+         * Encrypts data from the given buffer into the outgoing network buffer,
+         * which must be empty.
          *
-         * @param path the context's path (must start with '/')
-         * @param handler the context handler for the given path
-         * @param methods the HTTP methods supported by the context handler (default is "GET")
-         * @throws IllegalArgumentException if path is malformed
+         * @param src the buffer containing the data to encrypt
+         * @return the number of bytes consumed from the given buffer
+         * @throws IOException if an error occurs
          */
-        public void addContext(String path, ContextHandler handler, String... methods) {
-            if (path == null || !path.startsWith("/") && !path.equals("*"))
-                throw new IllegalArgumentException("invalid path: " + path);
-            path = trimRight(path, '/'); // remove trailing slash
-            ContextInfo info = new ContextInfo(path);
-            ContextInfo existing = contexts.putIfAbsent(path, info);
-            info = existing != null ? existing : info;
-            info.addHandler(handler, methods);
+        protected int wrap(ByteBuffer src) throws IOException {
+            SSLEngineResult result;
+            netOut.compact();
+            try {
+                result = engine.wrap(src, netOut);
+            } finally {
+                netOut.flip();
+            }
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED && src.hasRemaining())
+                throw new ClosedChannelException();
+            return result.bytesConsumed();
         }
 
         /**
-         * Adds contexts for all methods of the given object that
-         * are annotated with the {@link Context} annotation.
+         * Writes the outgoing network data to the channel.
          *
-         * @param o the object whose annotated methods are added
-         * @throws IllegalArgumentException if a Context-annotated
-         *         method has an {@link Context invalid signature}
+         * @return true if all data was written, false if the channel is not ready
+         * @throws IOException if an error occurs
          */
-        public void addContexts(Object o) throws IllegalArgumentException {
-            for (Class<?> c = o.getClass(); c != null; c = c.getSuperclass()) {
-                // add to contexts those with @Context annotation
-                for (Method m : c.getDeclaredMethods()) {
-                    Context context = m.getAnnotation(Context.class);
-                    if (context != null) {
-                        m.setAccessible(true); // allow access to private method
-                        ContextHandler handler = new MethodContextHandler(m, o);
-                        addContext(context.value(), handler, context.methods());
-                    }
+        public boolean flush() throws IOException {
+            while (netOut.hasRemaining()) {
+                if (ch.write(netOut) == 0) {
+                    interestOps = SelectionKey.OP_WRITE;
+                    return false;
                 }
             }
+            return true;
         }
-    }
 
-    /**
-     * The {@code Context} annotation decorates methods which are mapped
-     * to a context (path) within the server, and provide its contents.
-     * <p>
-     * The annotated methods must have the same signature and contract
-     * as {@link ContextHandler#serve}, but can have arbitrary names.
-     *
-     * @see VirtualHost#addContexts(Object)
-     */
-    @Retention(RetentionPolicy.RUNTIME)
-    @Target(ElementType.METHOD)
-    public @interface Context {
+        public int read(ByteBuffer dst) throws IOException {
+            return read(dst, true);
+        }
 
         /**
-         * The context (path) that this field maps to (must begin with '/').
+         * Reads decrypted data into the given buffer, until it is full
+         * or no more data is available without blocking.
          *
-         * @return the context (path) that this field maps to
+         * @param dst the buffer into which the data is read
+         * @param handshake whether to perform a handshake if needed, or return
+         *        without reading any further data when one is needed
+         * @return the number of bytes read, or -1 if the end of stream is reached
+         * @throws IOException if an error occurs
          */
-        String value();
+        public int read(ByteBuffer dst, boolean handshake) throws IOException {
+            int total = 0;
+            while (dst.hasRemaining()) {
+                if (appIn.hasRemaining()) {
+                    int count = Math.min(appIn.remaining(), dst.remaining());
+                    int limit = appIn.limit();
+                    appIn.limit(appIn.position() + count);
+                    dst.put(appIn);
+                    appIn.limit(limit);
+                    total += count;
+                } else if (isHandshaking() && (!handshake || !handshake()) || !unwrap()) {
+                    break;
+                }
+            }
+            return total == 0 && eof ? -1 : total;
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            if (!flush() || isHandshaking() && !handshake())
+                return 0;
+            int count = 0;
+            while (src.hasRemaining() && flush())
+                count += wrap(src);
+            flush();
+            return count;
+        }
 
         /**
-         * The HTTP methods supported by this context handler (default is "GET").
+         * Sends a close_notify alert, indicating that no more data will be
+         * written to the channel. The caller must then {@link #flush} the
+         * channel until it returns true.
          *
-         * @return the HTTP methods supported by this context handler
+         * @throws IOException if an error occurs
          */
-        String[] methods() default "GET";
-    }
+        public void closeOutbound() throws IOException {
+            engine.closeOutbound();
+            while (!engine.isOutboundDone() && flush())
+                wrap(EMPTY);
+        }
 
-    /**
-     * A {@code ContextHandler} serves the content of resources within a context.
-     *
-     * @see VirtualHost#addContext
-     */
-    public interface ContextHandler {
+        public boolean isOpen() {
+            return ch.isOpen();
+        }
 
         /**
-         * Serves the given request using the given response.
+         * Closes the underlying channel (without sending a close_notify alert)
+         * and returns the buffers to the pool.
          *
-         * @param req the request to be served
-         * @param resp the response to be filled
-         * @return an HTTP status code, which will be used in returning
-         *         a default response appropriate for this status. If this
-         *         method invocation already sent anything in the response
-         *         (headers or content), it must return 0, and no further
-         *         processing will be done
-         * @throws IOException if an IO error occurs
+         * @throws IOException if an error occurs
          */
-        int serve(Request req, Response resp) throws IOException;
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                ch.close();
+            } finally {
+                pool.release(netIn);
+                pool.release(netOut);
+                pool.release(appIn);
+            }
+        }
     }
 
     /**
-     * The {@code FileContextHandler} services a context by mapping it
-     * to a file or folder (recursively) on disk.
+     * The {@code HandshakeMetrics} class counts TLS handshakes, distinguishing
+     * full handshakes from abbreviated ones which resumed a previous session
+     * (and are thus much cheaper), and keeps a histogram of their latency.
      */
-    public static class FileContextHandler implements ContextHandler {
+    public static class HandshakeMetrics {
 
-        protected final File base;
+        protected static final long[] BOUNDS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000 };
 
-        public FileContextHandler(File dir) throws IOException {
-            this.base = dir.getCanonicalFile();
-        }
+        protected final AtomicLong full = new AtomicLong();
+        protected final AtomicLong resumed = new AtomicLong();
+        protected final AtomicLong failed = new AtomicLong();
+        protected final AtomicLongArray histogram = new AtomicLongArray(BOUNDS.length + 1);
 
-        public int serve(Request req, Response resp) throws IOException {
-            return serveFile(base, req.getContext().getPath(), req, resp);
+        /**
+         * Records a completed handshake. The handshake is considered to have
+         * resumed a session if the session was created before it started.
+         *
+         * @param session the handshake's session
+         * @param start the time at which the handshake started (in milliseconds)
+         * @param nanos the duration of the handshake (in nanoseconds)
+         */
+        public void record(SSLSession session, long start, long nanos) {
+            (session.getCreationTime() < start ? resumed : full).incrementAndGet();
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int i = 0;
+            while (i < BOUNDS.length && millis > BOUNDS[i])
+                i++;
+            histogram.incrementAndGet(i);
         }
-    }
-
-    /**
-     * The {@code MethodContextHandler} services a context
-     * by invoking a handler method on a specified object.
-     * <p>
-     * The method must have the same signature and contract as
-     * {@link ContextHandler#serve}, but can have an arbitrary name.
-     *
-     * @see VirtualHost#addContexts(Object)
-     */
-    public static class MethodContextHandler implements ContextHandler {
-
-        protected final Method m;
-        protected final Object obj;
 
-        public MethodContextHandler(Method m, Object obj) throws IllegalArgumentException {
-            this.m = m;
-            this.obj = obj;
-            Class<?>[] params = m.getParameterTypes();
-            if (params.length != 2
-                || !Request.class.isAssignableFrom(params[0])
-                || !Response.class.isAssignableFrom(params[1])
-                || !int.class.isAssignableFrom(m.getReturnType()))
-                    throw new IllegalArgumentException("invalid method signature: " + m);
+        /**
+         * Records a failed handshake.
+         */
+        public void recordFailure() {
+            failed.incrementAndGet();
         }
 
-        public int serve(Request req, Response resp) throws IOException {
-            try {
-                return (Integer)m.invoke(obj, req, resp);
-            } catch (InvocationTargetException ite) {
-                throw new IOException("error: " + ite.getCause().getMessage());
-            } catch (Exception e) {
-                throw new IOException("error: " + e);
-            }
+        /**
+         * Returns the number of full handshakes.
+         *
+         * @return the number of full handshakes
+         */
+        public long getFullCount() {
+            return full.get();
         }
-    }
-
-    /**
-     * The {@code Header} class encapsulates a single HTTP header.
-     */
-    public static class Header {
 
-        protected final String name;
-        protected final String value;
+        /**
+         * Returns the number of handshakes which resumed a previous session.
+         *
+         * @return the number of resumed handshakes
+         */
+        public long getResumedCount() {
+            return resumed.get();
+        }
 
         /**
-         * Constructs a header with the given name and value.
-         * Leading and trailing whitespace are trimmed.
+         * Returns the number of failed handshakes, including ones
+         * abandoned by the client.
          *
-         * @param name the header name
-         * @param value the header value
-         * @throws NullPointerException if name or value is null
-         * @throws IllegalArgumentException if name is empty
+         * @return the number of failed handshakes
          */
-        public Header(String name, String value) {
-            this.name = name.trim();
-            this.value = value.trim();
-            // RFC2616#14.23 - header can have an empty value (e.g. Host)
-            if (this.name.length() == 0) // but name cannot be empty
-                throw new IllegalArgumentException("name cannot be empty");
+        public long getFailureCount() {
+            return failed.get();
         }
 
         /**
-         * Returns this header's name.
+         * Returns the upper bounds (inclusive, in milliseconds) of the latency
+         * histogram buckets, except for the last bucket which is unbounded.
          *
-         * @return this header's name
+         * @return the bucket upper bounds
          */
-        public String getName() { return name; }
+        public long[] getLatencyBounds() {
+            return BOUNDS.clone();
+        }
 
         /**
-         * Returns this header's value.
+         * Returns the latency histogram, i.e. the number of completed handshakes
+         * whose duration falls within each bucket (see {@link #getLatencyBounds}).
          *
-         * @return this header's value
+         * @return the handshake counts per bucket
          */
-        public String getValue() { return value; }
+        public long[] getLatencyHistogram() {
+            long[] counts = new long[histogram.length()];
+            for (int i = 0; i < counts.length; i++)
+                counts[i] = histogram.get(i);
+            return counts;
+        }
     }
 
     /**
-     * The {@code Headers} class encapsulates a collection of HTTP headers.
+     * The {@code BufferPool} holds reusable buffers of a fixed size, so that
+     * connection streams and transfers do not allocate new buffers each time.
      * <p>
-     * Header names are treated case-insensitively, although this class retains
-     * their original case. Header insertion order is maintained as well.
+     * Each (platform) thread caches one released buffer for its own reuse,
+     * and the rest are shared among all threads, up to a configured maximum.
+     * Virtual threads, which are short-lived and not reused, use only the
+     * shared buffers. Buffers that do not belong to the pool are ignored
+     * when released.
      */
-    public static class Headers implements Iterable<Header> {
-
-        // due to the requirements of case-insensitive name comparisons,
-        // retaining the original case, and retaining header insertion order,
-        // and due to the fact that the number of headers is generally
-        // quite small (usually under 12 headers), we use a simple array with
-        // linear access times, which proves to be more efficient and
-        // straightforward than the alternatives
-        protected Header[] headers = new Header[12];
-        protected int count;
+    public static class BufferPool {
+
+        protected static final Method isVirtualMethod = getIsVirtualMethod();
+        protected static final ByteBuffer[] NO_CACHE = new ByteBuffer[0];
+        protected static volatile BufferPool defaultPool = new BufferPool(4096, 1024, false);
+
+        protected final int bufferSize;
+        protected final int maxShared;
+        protected final boolean direct;
+        protected final Queue<ByteBuffer> shared = new ConcurrentLinkedQueue<ByteBuffer>();
+        protected final AtomicInteger sharedCount = new AtomicInteger();
+        protected final ThreadLocal<ByteBuffer[]> cached = new ThreadLocal<ByteBuffer[]>() {
+            @Override
+            protected ByteBuffer[] initialValue() {
+                return isVirtual(Thread.currentThread()) ? NO_CACHE : new ByteBuffer[1];
+            }
+        };
 
         /**
-         * Returns the number of added headers.
+         * Constructs a BufferPool.
          *
-         * @return the number of added headers
+         * @param bufferSize the size of each buffer
+         * @param maxShared the maximum number of buffers shared among threads
+         * @param direct whether the pool holds direct buffers or heap buffers
+         * @throws IllegalArgumentException if the buffer size is not positive
          */
-        public int size() {
-            return count;
+        public BufferPool(int bufferSize, int maxShared, boolean direct) {
+            if (bufferSize <= 0)
+                throw new IllegalArgumentException("invalid buffer size: " + bufferSize);
+            this.bufferSize = bufferSize;
+            this.maxShared = maxShared;
+            this.direct = direct;
         }
 
         /**
-         * Returns the value of the first header with the given name.
+         * Returns the default pool, which holds heap buffers and is used
+         * by the static utility methods such as {@link HTTPServer#transfer}.
          *
-         * @param name the header name (case insensitive)
-         * @return the header value, or null if none exists
+         * @return the default pool
          */
-        public String get(String name) {
-            for (int i = 0; i < count; i++)
-                if (headers[i].getName().equalsIgnoreCase(name))
-                    return headers[i].getValue();
-            return null;
+        public static BufferPool getDefault() {
+            return defaultPool;
         }
 
         /**
-         * Returns the Date value of the header with the given name.
+         * Sets the default pool, which holds heap buffers and is used
+         * by the static utility methods such as {@link HTTPServer#transfer}.
          *
-         * @param name the header name (case insensitive)
-         * @return the header value as a Date, or null if none exists
-         *         or if the value is not in any supported date format
+         * @param pool the default pool
+         * @throws IllegalArgumentException if the given pool holds direct buffers
          */
-        public Date getDate(String name) {
-            try {
-                String header = get(name);
-                return header == null ? null : parseDate(header);
-            } catch (IllegalArgumentException iae) {
-                return null;
-            }
+        public static void setDefault(BufferPool pool) {
+            if (pool.isDirect())
+                throw new IllegalArgumentException("default pool must hold heap buffers");
+            defaultPool = pool;
         }
 
         /**
-         * Returns whether there exists a header with the given name.
+         * Returns the size of each buffer in the pool.
          *
-         * @param name the header name (case insensitive)
-         * @return whether there exists a header with the given name
+         * @return the size of each buffer
          */
-        public boolean contains(String name) {
-            return get(name) != null;
+        public int getBufferSize() {
+            return bufferSize;
         }
 
         /**
-         * Adds a header with the given name and value to the end of this
-         * collection of headers. Leading and trailing whitespace are trimmed.
+         * Returns whether the pool holds direct buffers or heap buffers.
          *
-         * @param name the header name (case insensitive)
-         * @param value the header value
+         * @return true if the pool holds direct buffers, false if heap buffers
          */
-        public void add(String name, String value) {
-            Header header = new Header(name, value); // also validates
-            // expand array if necessary
-            if (count == headers.length) {
-                Header[] expanded = new Header[2 * count];
-                System.arraycopy(headers, 0, expanded, 0, count);
-                headers = expanded;
-            }
-            headers[count++] = header; // inlining header would cause a bug!
+        public boolean isDirect() {
+            return direct;
         }
 
         /**
-         * Adds all given headers to the end of this collection of headers,
-         * in their original order.
+         * Returns a buffer from the pool, or a new one if none is available.
+         * The buffer should be {@link #release released} when no longer in use.
          *
-         * @param headers the headers to add
+         * @return an empty buffer (in write mode)
          */
-        public void addAll(Headers headers) {
-            for (Header header : headers)
-                add(header.getName(), header.getValue());
+        public ByteBuffer get() {
+            ByteBuffer[] cache = cached.get();
+            ByteBuffer buf = cache.length > 0 ? cache[0] : null;
+            if (buf != null) {
+                cache[0] = null;
+            } else if ((buf = shared.poll()) != null) {
+                sharedCount.decrementAndGet();
+            } else {
+                return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+            }
+            buf.clear();
+            return buf;
         }
 
         /**
-         * Adds a header with the given name and value, replacing the first
-         * existing header with the same name. If there is no existing header
-         * with the same name, it is added as in {@link #add}.
+         * Returns a buffer to the pool for reuse. The buffer must not
+         * be used by the caller after it is released.
          *
-         * @param name the header name (case insensitive)
-         * @param value the header value
-         * @return the replaced header, or null if none existed
+         * @param buf the buffer (may be null, and is ignored
+         *        if it does not belong to the pool)
          */
-        public Header replace(String name, String value) {
-            for (int i = 0; i < count; i++) {
-                if (headers[i].getName().equalsIgnoreCase(name)) {
-                    Header prev = headers[i];
-                    headers[i] = new Header(name, value);
-                    return prev;
-                }
+        public void release(ByteBuffer buf) {
+            if (buf == null || buf.capacity() != bufferSize || buf.isDirect() != direct || buf.isReadOnly())
+                return;
+            ByteBuffer[] cache = cached.get();
+            if (cache.length > 0 && cache[0] == null) {
+                cache[0] = buf;
+            } else if (sharedCount.incrementAndGet() <= maxShared) {
+                shared.offer(buf);
+            } else {
+                sharedCount.decrementAndGet(); // discard it
             }
-            add(name, value);
-            return null;
         }
 
         /**
-         * Removes all headers with the given name (if any exist).
+         * Returns the {@code Thread.isVirtual} method, if supported by the JVM.
          *
-         * @param name the header name (case insensitive)
+         * @return the method, or null if it is not supported
          */
-        public void remove(String name) {
-            int j = 0;
-            for (int i = 0; i < count; i++)
-                if (!headers[i].getName().equalsIgnoreCase(name))
-                    headers[j++] = headers[i];
-            while (count > j)
-                headers[--count] = null;
+        protected static Method getIsVirtualMethod() {
+            try {
+                return Thread.class.getMethod("isVirtual");
+            } catch (NoSuchMethodException nsme) {
+                return null;
+            }
         }
 
         /**
-         * Writes the headers to the given stream (including trailing CRLF).
+         * Returns whether the given thread is a virtual thread.
          *
-         * @param out the stream to write the headers to
-         * @throws IOException if an error occurs
+         * @param thread a thread
+         * @return whether the given thread is a virtual thread
          */
-        public void writeTo(OutputStream out) throws IOException {
-            for (int i = 0; i < count; i++) {
-                out.write(getBytes(headers[i].getName(), ": ", headers[i].getValue()));
-                out.write(CRLF);
+        protected static boolean isVirtual(Thread thread) {
+            try {
+                return isVirtualMethod != null && (Boolean)isVirtualMethod.invoke(thread);
+            } catch (Exception e) {
+                return false;
             }
-            out.write(CRLF); // ends header block
         }
+    }
+
+    /**
+     * The {@code DeflaterPool} holds {@link Deflater} instances for reuse,
+     * since each one allocates a substantial amount of native memory which is
+     * otherwise only freed when it is explicitly ended or garbage collected.
+     * A released Deflater is reset, and its level and strategy are set anew
+     * whenever it is taken from the pool.
+     */
+    public static class DeflaterPool {
+
+        protected static volatile DeflaterPool defaultPool = new DeflaterPool(64);
+
+        protected final int maxSize;
+        protected final Queue<Deflater> wrapped = new ConcurrentLinkedQueue<Deflater>(); // zlib format
+        protected final Queue<Deflater> raw = new ConcurrentLinkedQueue<Deflater>(); // for gzip format
+        protected final AtomicInteger size = new AtomicInteger();
+        protected final AtomicLong hits = new AtomicLong();
+        protected final AtomicLong misses = new AtomicLong();
+        protected final AtomicLong bytesIn = new AtomicLong();
+        protected final AtomicLong bytesOut = new AtomicLong();
 
         /**
-         * Returns a header's parameters. Parameter order is maintained,
-         * and the first key (in iteration order) is the header's value
-         * without the parameters.
+         * Constructs a DeflaterPool.
          *
-         * @param name the header name (case insensitive)
-         * @return the header's parameter names and values
+         * @param maxSize the maximum number of idle Deflaters held by the pool
          */
-        public Map<String, String> getParams(String name) {
-            Map<String, String> params = new LinkedHashMap<String, String>();
-            for (String param : split(get(name), ";", -1)) {
-                String[] pair = split(param, "=", 2);
-                String val = pair.length == 1 ? "" : trimLeft(trimRight(pair[1], '"'), '"');
-                params.put(pair[0], val);
-            }
-            return params;
+        public DeflaterPool(int maxSize) {
+            this.maxSize = maxSize;
         }
 
         /**
-         * Returns an iterator over the headers, in their insertion order.
-         * If the headers collection is modified during iteration, the
-         * iteration result is undefined. The remove operation is unsupported.
+         * Returns the default pool.
          *
-         * @return an Iterator over the headers
+         * @return the default pool
          */
-        public Iterator<Header> iterator() {
-            // we use the built-in wrapper instead of a trivial custom implementation
-            // since even a tiny anonymous class here compiles to a 1.5K class file
-            return Arrays.asList(headers).subList(0, count).iterator();
+        public static DeflaterPool getDefault() {
+            return defaultPool;
         }
-    }
-
-    /**
-     * The {@code Request} class encapsulates a single HTTP request.
-     */
-    public class Request {
-
-        protected String method;
-        protected URI uri;
-        protected URL baseURL; // cached value
-        protected String version;
-        protected Headers headers;
-        protected InputStream body;
-        protected Map<String, String> params; // cached value
-        protected VirtualHost host; // cached value
-        protected VirtualHost.ContextInfo context; // cached value
 
         /**
-         * Constructs a Request from the data in the given input stream.
+         * Sets the default pool.
          *
-         * @param in the input stream from which the request is read
-         * @throws IOException if an error occurs
+         * @param pool the default pool
          */
-        public Request(InputStream in) throws IOException {
-            readRequestLine(in);
-            headers = readHeaders(in);
-            // RFC2616#3.6 - if "chunked" is used, it must be the last one
-            // RFC2616#4.4 - if non-identity Transfer-Encoding is present,
-            // it must either include "chunked" or close the connection after
-            // the body, and in any case ignore Content-Length.
-            // if there is no such Transfer-Encoding, use Content-Length
-            // if neither header exists, there is no body
-            String header = headers.get("Transfer-Encoding");
-            if (header != null && !header.toLowerCase(Locale.US).equals("identity")) {
-                if (Arrays.asList(splitElements(header, true)).contains("chunked"))
-                    body = new ChunkedInputStream(in, headers);
-                else
-                    body = in; // body ends when connection closes
-            } else {
-                header = headers.get("Content-Length");
-                long len = header == null ? 0 : parseULong(header, 10);
-                body = new LimitedInputStream(in, len, false);
-            }
+        public static void setDefault(DeflaterPool pool) {
+            defaultPool = pool;
         }
 
         /**
-         * Returns the request method.
+         * Returns a Deflater from the pool, or a new one if none is available.
+         * The Deflater should be {@link #release released} when no longer in use.
          *
-         * @return the request method
+         * @param nowrap if true, the Deflater produces raw deflate data (as used
+         *        within the gzip format), otherwise it uses the zlib format
+         * @param level the compression level (0-9 or {@link Deflater#DEFAULT_COMPRESSION})
+         * @param strategy the compression strategy (e.g. {@link Deflater#DEFAULT_STRATEGY})
+         * @return a Deflater
          */
-        public String getMethod() { return method; }
+        public Deflater get(boolean nowrap, int level, int strategy) {
+            Deflater def = (nowrap ? raw : wrapped).poll();
+            if (def == null) {
+                misses.incrementAndGet();
+                def = new Deflater(level, nowrap);
+            } else {
+                size.decrementAndGet();
+                hits.incrementAndGet();
+            }
+            def.setLevel(level);
+            def.setStrategy(strategy);
+            return def;
+        }
 
         /**
-         * Returns the request URI.
+         * Returns a Deflater to the pool for reuse, after resetting it.
+         * The Deflater must not be used by the caller after it is released.
          *
-         * @return the request URI
+         * @param def the Deflater (may be null)
+         * @param nowrap whether the Deflater was obtained as a raw deflater
          */
-        public URI getURI() { return uri; }
+        public void release(Deflater def, boolean nowrap) {
+            if (def == null)
+                return;
+            bytesIn.addAndGet(def.getBytesRead());
+            bytesOut.addAndGet(def.getBytesWritten());
+            if (size.incrementAndGet() <= maxSize) {
+                def.reset();
+                (nowrap ? raw : wrapped).offer(def);
+            } else {
+                size.decrementAndGet();
+                def.end(); // free native memory now
+            }
+        }
 
         /**
-         * Returns the request version string.
+         * Returns the fraction of Deflaters requested from the pool
+         * which were reused rather than newly created.
          *
-         * @return the request version string
+         * @return the pool hit rate (between 0 and 1)
          */
-        public String getVersion() { return version; }
+        public double getHitRate() {
+            long h = hits.get();
+            long total = h + misses.get();
+            return total == 0 ? 0 : (double)h / total;
+        }
 
         /**
-         * Returns the request headers.
+         * Returns the total number of uncompressed bytes
+         * processed by the released Deflaters.
          *
-         * @return the request headers
+         * @return the total number of uncompressed bytes
          */
-        public Headers getHeaders() { return headers; }
+        public long getBytesIn() {
+            return bytesIn.get();
+        }
 
         /**
-         * Returns the input stream containing the request body.
+         * Returns the total number of compressed bytes
+         * produced by the released Deflaters.
          *
-         * @return the input stream containing the request body
+         * @return the total number of compressed bytes
          */
-        public InputStream getBody() { return body; }
+        public long getBytesOut() {
+            return bytesOut.get();
+        }
+    }
+
+    /**
+     * The {@code PooledDeflaterOutputStream} compresses data in the gzip
+     * (RFC 1952) or zlib (RFC 1950) format using a Deflater taken from a
+     * {@link DeflaterPool}, which is returned to the pool when the stream is
+     * closed. Closing the stream also closes the underlying stream.
+     */
+    public static class PooledDeflaterOutputStream extends DeflaterOutputStream {
+
+        protected static final byte[] GZIP_HEADER = { 0x1f, (byte)0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+        protected final DeflaterPool pool;
+        protected final CRC32 crc; // gzip checksum, or null if not gzip
+        protected boolean released;
 
         /**
-         * Returns the path component of the request URI, after
-         * URL decoding has been applied (using the UTF-8 charset).
+         * Constructs a PooledDeflaterOutputStream.
          *
-         * @return the decoded path component of the request URI
+         * @param out the underlying output stream
+         * @param pool the pool from which the Deflater is taken
+         * @param gzip if true, the gzip format is written, otherwise the zlib format
+         * @param level the compression level (0-9 or {@link Deflater#DEFAULT_COMPRESSION})
+         * @param strategy the compression strategy (e.g. {@link Deflater#DEFAULT_STRATEGY})
+         * @throws IOException if an error occurs
          */
-        public String getPath() {
-            return uri.getPath();
+        public PooledDeflaterOutputStream(OutputStream out, DeflaterPool pool, boolean gzip,
+                int level, int strategy) throws IOException {
+            super(out, pool.get(gzip, level, strategy), 4096);
+            this.pool = pool;
+            this.crc = gzip ? new CRC32() : null;
+            if (gzip)
+                out.write(GZIP_HEADER);
         }
 
-        /**
-         * Sets the path component of the request URI. This can be useful
-         * in URL rewriting, etc.
-         *
-         * @param path the path to set
-         * @throws IllegalArgumentException if the given path is malformed
-         */
-        public void setPath(String path) {
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            if (crc != null)
+                crc.update(b, off, len);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (def.finished())
+                return;
+            super.finish();
+            if (crc != null) { // write gzip trailer (little-endian CRC and input size mod 2^32)
+                long crcValue = crc.getValue();
+                long size = def.getBytesRead();
+                byte[] trailer = new byte[8];
+                for (int i = 0; i < 4; i++) {
+                    trailer[i] = (byte)(crcValue >> 8 * i);
+                    trailer[i + 4] = (byte)(size >> 8 * i);
+                }
+                out.write(trailer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (released)
+                return;
             try {
-                uri = new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), uri.getPort(),
-                    trimDuplicates(path, '/'), uri.getQuery(), uri.getFragment());
-                context = null; // clear cached context so it will be recalculated
-            } catch (URISyntaxException use) {
-                throw new IllegalArgumentException("error setting path", use);
+                super.close();
+            } finally {
+                released = true;
+                pool.release(def, crc != null);
             }
         }
+    }
+
+    /**
+     * The {@code ParallelDeflaterOutputStream} compresses data in the gzip
+     * (RFC 1952) or zlib (RFC 1950) format using multiple threads, so that
+     * large bodies are compressed on multiple cores rather than only on the
+     * thread writing them.
+     * <p>
+     * Written data is split into blocks which are compressed concurrently by
+     * the given executor, each as a raw deflate block ending with a sync flush
+     * (so that it ends on a byte boundary) and using the end of the preceding
+     * block as its dictionary (so that the compression ratio is nearly the same
+     * as compressing sequentially). The compressed blocks are written in order
+     * as they become ready, and the checksum is calculated sequentially by the
+     * writing thread. The number of blocks pending per stream is bounded, so the
+     * writer blocks when the executor falls behind, and a block that the executor
+     * rejects is compressed by the writing thread itself. Data that is flushed or
+     * finished with no other blocks pending is also compressed by the writing
+     * thread, and the first block grows only as data is written, so small
+     * bodies incur neither hand-off nor full block allocation overhead.
+     * <p>
+     * Closing the stream also closes the underlying stream.
+     */
+    public static class ParallelDeflaterOutputStream extends FilterOutputStream {
+
+        protected static final byte[] ZLIB_HEADER = { 0x78, (byte)0x9c };
+        protected static final int WINDOW_SIZE = 32768; // maximum deflate distance
+
+        protected final DeflaterPool pool;
+        protected final Executor executor;
+        protected final boolean gzip;
+        protected final int level, strategy;
+        protected final int blockSize;
+        protected final int maxPending;
+        protected final Checksum check; // CRC32 for gzip, Adler32 for zlib
+        protected final Deque<Future<ByteBuffer>> pending = new ArrayDeque<Future<ByteBuffer>>();
+        protected byte[] block; // the block being filled, or null if not yet allocated
+        protected int count; // number of bytes in block
+        protected byte[] dict; // the previous block, used as dictionary
+        protected int dictLen; // number of bytes in previous block
+        protected long size; // total number of bytes written
+        protected boolean finished;
 
         /**
-         * Returns the base URL (scheme, host and port) of the request resource.
-         * The host name is taken from the request URI or the Host header or a
-         * default host (see RFC2616#5.2).
+         * Constructs a ParallelDeflaterOutputStream.
          *
-         * @return the base URL of the requested resource, or null if it
-         *         is malformed
+         * @param out the underlying output stream
+         * @param pool the pool from which Deflaters are taken
+         * @param executor the executor which compresses the blocks
+         * @param gzip if true, the gzip format is written, otherwise the zlib format
+         * @param level the compression level (0-9 or {@link Deflater#DEFAULT_COMPRESSION})
+         * @param strategy the compression strategy (e.g. {@link Deflater#DEFAULT_STRATEGY})
+         * @param blockSize the size of each compressed block (at least 32K)
+         * @param maxPending the maximum number of blocks that may be pending
+         *        (being compressed or waiting to be written) at any time
+         * @throws IOException if an error occurs
+         * @throws IllegalArgumentException if a size is invalid
          */
-        public URL getBaseURL() {
-            if (baseURL != null)
-                return baseURL;
-            // normalize host header
-            String host = uri.getHost();
-            if (host == null) {
-                host = headers.get("Host");
-                if (host == null) // missing in HTTP/1.0
-                    host = detectLocalHostName();
-            }
-            int pos = host.indexOf(':');
-            host = pos < 0 ? host : host.substring(0, pos);
-            try {
-                return baseURL = new URL(secure ? "https" : "http", host, port, "");
-            } catch (MalformedURLException mue) {
-                return null;
-            }
+        public ParallelDeflaterOutputStream(OutputStream out, DeflaterPool pool, Executor executor,
+                boolean gzip, int level, int strategy, int blockSize, int maxPending) throws IOException {
+            super(out);
+            if (blockSize < WINDOW_SIZE || maxPending < 1)
+                throw new IllegalArgumentException("invalid sizes: " + blockSize + ", " + maxPending);
+            this.pool = pool;
+            this.executor = executor;
+            this.gzip = gzip;
+            this.level = level;
+            this.strategy = strategy;
+            this.blockSize = blockSize;
+            this.maxPending = maxPending;
+            this.check = gzip ? new CRC32() : new Adler32();
+            out.write(gzip ? PooledDeflaterOutputStream.GZIP_HEADER : ZLIB_HEADER);
         }
 
         /**
-         * Returns the request parameters, which are parsed both from the query
-         * part of the request URI, and from the request body if its content
-         * type is "application/x-www-form-urlencoded" (i.e. a submitted form).
-         * UTF-8 encoding is assumed in both cases.
-         * <p>
-         * The parameters are returned as a list of string arrays, each containing
-         * the parameter name as the first element and its corresponding value
-         * as the second element (or an empty string if there is no value).
-         * <p>
-         * The list retains the original order of the parameters.
+         * Creates a bounded executor suitable for compressing blocks.
+         * Its threads are daemon threads which terminate when idle,
+         * and tasks that exceed its capacity are rejected (and are then
+         * compressed by the writing thread).
          *
-         * @return the request parameters name-value pairs,
-         *         or an empty list if there are none
-         * @throws IOException if an error occurs
-         * @see HTTPServer#parseParamsList(String)
+         * @param threads the maximum number of compressing threads
+         * @param queueSize the maximum number of blocks waiting for a thread
+         * @return the executor
          */
-        public List<String[]> getParamsList() throws IOException {
-            List<String[]> queryParams = parseParamsList(uri.getRawQuery());
-            List<String[]> bodyParams = Collections.emptyList();
-            String ct = headers.get("Content-Type");
-            if (ct != null && ct.toLowerCase(Locale.US).startsWith("application/x-www-form-urlencoded"))
-                bodyParams = parseParamsList(readToken(body, -1, "UTF-8", 2097152)); // 2MB limit
-            if (bodyParams.isEmpty())
-                return queryParams;
-            if (queryParams.isEmpty())
-                return bodyParams;
-            queryParams.addAll(bodyParams);
-            return queryParams;
+        public static ThreadPoolExecutor createExecutor(int threads, int queueSize) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                queueSize > 0 ? new ArrayBlockingQueue<Runnable>(queueSize) : new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    final AtomicInteger count = new AtomicInteger();
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "HTTPServer-compressor-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            executor.allowCoreThreadTimeOut(true); // consumes no resources when idle
+            return executor;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished)
+                throw new IOException("stream is finished");
+            while (len > 0) {
+                if (block == null || count == block.length)
+                    grow(len);
+                int n = Math.min(len, block.length - count);
+                System.arraycopy(b, off, block, count, n);
+                count += n;
+                off += n;
+                len -= n;
+                if (count == blockSize)
+                    submit(false, false);
+            }
         }
 
         /**
-         * Returns the request parameters, which are parsed both from the query
-         * part of the request URI, and from the request body if its content
-         * type is "application/x-www-form-urlencoded" (i.e. a submitted form).
-         * UTF-8 encoding is assumed in both cases.
-         * <p>
-         * For multivalued parameters (i.e. multiple parameters with the same
-         * name), only the first one is considered. For access to all values,
-         * use {@link #getParamsList()} instead.
-         * <p>
-         * The map iteration retains the original order of the parameters.
+         * Allocates or enlarges the block being filled so that it can hold more data.
+         * A block following a full block is allocated at full size, while other
+         * blocks start small and grow as needed up to the block size.
          *
-         * @return the request parameters name-value pairs,
-         *         or an empty map if there are none
-         * @throws IOException if an error occurs
-         * @see #getParamsList()
+         * @param len the number of bytes about to be written
          */
-        public Map<String, String> getParams() throws IOException {
-            if (params == null)
-                params = toMap(getParamsList());
-            return params;
+        protected void grow(int len) {
+            int capacity = dictLen == blockSize ? blockSize
+                : Math.min(blockSize, Math.max(4096, Math.max(count + len, 2 * count)));
+            block = block == null ? new byte[capacity] : Arrays.copyOf(block, capacity);
         }
 
         /**
-         * Returns the absolute (zero-based) content range value read
-         * from the Range header. If multiple ranges are requested, a single
-         * range containing all of them is returned.
+         * Compresses all data written so far and flushes it to the
+         * underlying stream. Note that this reduces the compression ratio,
+         * so it should be used only where the data must be sent promptly.
          *
-         * @param length the full length of the requested resource
-         * @return the requested range, or null if the Range header
-         *         is missing or invalid
+         * @throws IOException if an error occurs
          */
-        public long[] getRange(long length) {
-            String header = headers.get("Range");
-            return header == null || !header.startsWith("bytes=")
-                ? null : parseRange(header.substring(6), length);
+        @Override
+        public void flush() throws IOException {
+            if (!finished) {
+                if (count > 0)
+                    submit(false, true);
+                writePending(0);
+            }
+            out.flush();
         }
 
         /**
-         * Reads the request line, parsing the method, URI and version string.
+         * Finishes writing the compressed data, including the format trailer,
+         * without closing the underlying stream.
          *
-         * @param in the input stream from which the request line is read
-         * @throws IOException if an error occurs or the request line is invalid
+         * @throws IOException if an error occurs
          */
-        protected void readRequestLine(InputStream in) throws IOException {
-            // RFC2616#4.1: should accept empty lines before request line
-            // RFC2616#19.3: tolerate additional whitespace between tokens
-            String line;
-            try {
-                do { line = readLine(in); } while (line.length() == 0);
-            } catch (IOException ioe) { // if EOF, timeout etc.
-                throw new IOException("missing request line"); // signal that the request did not begin
+        public void finish() throws IOException {
+            if (finished)
+                return;
+            submit(true, true);
+            finished = true;
+            writePending(0);
+            long value = check.getValue();
+            byte[] trailer;
+            if (gzip) { // little-endian CRC and input size mod 2^32
+                trailer = new byte[8];
+                for (int i = 0; i < 4; i++) {
+                    trailer[i] = (byte)(value >> 8 * i);
+                    trailer[i + 4] = (byte)(size >> 8 * i);
+                }
+            } else { // big-endian Adler-32
+                trailer = new byte[4];
+                for (int i = 0; i < 4; i++)
+                    trailer[i] = (byte)(value >> 8 * (3 - i));
             }
-            String[] tokens = split(line, " ", -1);
-            if (tokens.length != 3)
-                throw new IOException("invalid request line: \"" + line + "\"");
+            out.write(trailer);
+        }
+
+        @Override
+        public void close() throws IOException {
             try {
-                method = tokens[0];
-                // must remove '//' prefix which constructor parses as host name
-                uri = new URI(trimDuplicates(tokens[1], '/'));
-                version = tokens[2]; // RFC2616#2.1: allow implied LWS; RFC7230#3.1.1: disallow it
-            } catch (URISyntaxException use) {
-                throw new IOException("invalid URI: " + use.getMessage());
+                finish();
+            } finally {
+                out.close();
             }
         }
 
         /**
-         * Returns the virtual host corresponding to the requested host name,
-         * or the default host if none exists.
+         * Submits the current block for compression, and writes the
+         * pending blocks which are ready.
          *
-         * @return the virtual host corresponding to the requested host name,
-         *         or the default virtual host
+         * @param last whether this is the last block of the stream
+         * @param inline whether the block may be compressed by the current
+         *        thread if no other blocks are pending (since it is needed now)
+         * @throws IOException if an error occurs
          */
-        public VirtualHost getVirtualHost() {
-            return host != null ? host
-                : (host = HTTPServer.this.getVirtualHost(getBaseURL().getHost())) != null ? host
-                : (host = HTTPServer.this.getVirtualHost(null));
+        protected void submit(final boolean last, boolean inline) throws IOException {
+            final byte[] data = block != null ? block : new byte[0];
+            final int len = count;
+            final byte[] prev = dict;
+            final int prevLen = dictLen;
+            check.update(data, 0, len);
+            size += len;
+            FutureTask<ByteBuffer> task = new FutureTask<ByteBuffer>(new Callable<ByteBuffer>() {
+                public ByteBuffer call() {
+                    return deflate(data, len, prev, prevLen, last);
+                }
+            });
+            if (inline && pending.isEmpty()) {
+                task.run();
+            } else {
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException ree) {
+                    task.run(); // executor is saturated, so do it ourselves
+                }
+            }
+            pending.add(task);
+            dict = data; // blocks are not reused, so it remains intact while compressing
+            dictLen = len;
+            block = null; // allocated on next write
+            count = 0;
+            writePending(maxPending);
         }
 
         /**
-         * Returns the info of the context handling this request.
+         * Writes compressed blocks in order as long as more than the given number
+         * of blocks are pending (waiting for them to complete if necessary),
+         * followed by any subsequent blocks which are already complete.
          *
-         * @return the info of the context handling this request, or an empty context
+         * @param max the maximum number of blocks that may remain pending
+         * @throws IOException if an error occurs
          */
-        public VirtualHost.ContextInfo getContext() {
-            return context != null ? context : (context = getVirtualHost().getContext(getPath()));
+        protected void writePending(int max) throws IOException {
+            Future<ByteBuffer> head;
+            while ((head = pending.peek()) != null && (pending.size() > max || head.isDone())) {
+                pending.poll();
+                ByteBuffer buf;
+                try {
+                    buf = head.get();
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException("interrupted while compressing");
+                } catch (ExecutionException ee) {
+                    throw toIOException(ee.getCause());
+                }
+                out.write(buf.array(), 0, buf.limit());
+            }
         }
-    }
+
+        /**
+         * Compresses a block into raw deflate data.
+         *
+         * @param data the block data
+         * @param len the number of bytes in the block
+         * @param dict the previous block, or null if there is none
+         * @param dictLen the number of bytes in the previous block
+         * @param last whether this is the last block of the stream, which is
+         *        finished rather than sync-flushed
+         * @return the compressed block
+         */
+        protected ByteBuffer deflate(byte[] data, int len, byte[] dict, int dictLen, boolean last) {
+            Deflater def = pool.get(true, level, strategy);
+            try {
+                if (dictLen > 0) {
+                    int n = Math.min(dictLen, WINDOW_SIZE);
+                    def.setDictionary(dict, dictLen - n, n);
+                }
+                def.setInput(data, 0, len);
+                if (last)
+                    def.finish();
+                byte[] buf = new byte[len + (len >> 4) + 64]; // usually enough for incompressible data
+                int pos = 0;
+                while (true) {
+                    pos += def.deflate(buf, pos, buf.length - pos, last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                    // (the first call may only apply a changed level without consuming input)
+                    if (last ? def.finished() : def.needsInput() && pos < buf.length)
+                        break;
+                    if (pos == buf.length)
+                        buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                return ByteBuffer.wrap(buf, 0, pos);
+            } finally {
+                pool.release(def, true);
+            }
+        }
+    }
+
+    /**
+     * The {@code MultipartInputStream} decodes an InputStream whose data has
+     * a "multipart/*" content type (see RFC 2046), providing the underlying
+     * data of its various parts.
+     * <p>
+     * The {@code InputStream} methods (e.g. {@link #read}) relate only to
+     * the current part, and the {@link #nextPart} method advances to the
+     * beginning of the next part.
+     */
+    public static class MultipartInputStream extends FilterInputStream {
+
+        protected final byte[] boundary; // including leading CRLF--
+        protected final int[] skip = new int[256]; // Boyer-Moore-Horspool bad character shifts
+        protected final byte[] buf;
+        protected int head, tail; // indices of current part's data in buf
+        protected int end; // last index of input data read into buf
+        protected int len; // length of found boundary
+        protected int state; // initial, started data, start boundary, EOS, last boundary, epilogue
+        protected long size; // total number of bytes read from the underlying stream
+        protected long maxSize; // maximum total size, or 0 if unlimited
+        protected int parts; // number of parts started
+        protected int maxParts; // maximum number of parts, or 0 if unlimited
+
+        /**
+         * Constructs a MultipartInputStream with the given underlying stream.
+         *
+         * @param in the underlying multipart stream
+         * @param boundary the multipart boundary
+         * @throws NullPointerException if the given stream or boundary is null
+         * @throws IllegalArgumentException if the given boundary's size is not
+         *         between 1 and 70
+         */
+        protected MultipartInputStream(InputStream in, byte[] boundary) {
+            this(in, boundary, 16384);
+        }
+
+        /**
+         * Constructs a MultipartInputStream with the given underlying stream
+         * and buffer size. A larger buffer reduces the number of reads from the
+         * underlying stream and writes when {@link #transferTo transferring}
+         * large parts.
+         *
+         * @param in the underlying multipart stream
+         * @param boundary the multipart boundary
+         * @param bufferSize the buffer size (at least 512 bytes)
+         * @throws NullPointerException if the given stream or boundary is null
+         * @throws IllegalArgumentException if the given boundary's size is not
+         *         between 1 and 70, or the buffer size is too small
+         */
+        protected MultipartInputStream(InputStream in, byte[] boundary, int bufferSize) {
+            super(in);
+            int len = boundary.length;
+            if (len == 0 || len > 70)
+                throw new IllegalArgumentException("invalid boundary length");
+            if (bufferSize < 512) // must hold max boundary and whitespace with room for data
+                throw new IllegalArgumentException("invalid buffer size: " + bufferSize);
+            buf = new byte[bufferSize];
+            this.boundary = new byte[len + 4]; // CRLF--boundary
+            System.arraycopy(CRLF, 0, this.boundary, 0, 2);
+            this.boundary[2] = this.boundary[3] = '-';
+            System.arraycopy(boundary, 0, this.boundary, 4, len);
+            // precompute the shift for each byte value at the end of a mismatched window
+            int last = this.boundary.length - 1;
+            Arrays.fill(skip, last + 1);
+            for (int i = 0; i < last; i++)
+                skip[this.boundary[i] & 0xFF] = last - i;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill())
+                return -1;
+            return buf[head++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!fill())
+                return -1;
+            len = Math.min(tail - head, len);
+            System.arraycopy(buf, head, b, off, len); // throws IOOBE as necessary
+            head += len;
+            return len;
+        }
+
+        @Override
+        public long skip(long len) throws IOException {
+            if (len <= 0 || !fill())
+                return 0;
+            len = Math.min(tail - head, len);
+            head += len;
+            return len;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return tail - head;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Sets limits on the multipart which are enforced while it is read.
+         *
+         * @param maxSize the maximum total number of bytes that may be read from
+         *        the underlying stream (including headers and boundaries),
+         *        or 0 for no limit
+         * @param maxParts the maximum number of parts, or 0 for no limit
+         */
+        public void setLimits(long maxSize, int maxParts) {
+            this.maxSize = maxSize;
+            this.maxParts = maxParts;
+        }
+
+        /**
+         * Transfers the remaining data of the current part to the given channel.
+         * The data is written directly from this stream's buffer, so it is
+         * not copied any further.
+         *
+         * @param ch the channel to which the data is written
+         * @return the number of bytes transferred
+         * @throws IOException if an error occurs
+         */
+        public long transferTo(WritableByteChannel ch) throws IOException {
+            long count = 0;
+            while (fill()) {
+                ByteBuffer data = ByteBuffer.wrap(buf, head, tail - head);
+                while (data.hasRemaining())
+                    ch.write(data);
+                count += tail - head;
+                head = tail;
+            }
+            return count;
+        }
+
+        /**
+         * Advances the stream position to the beginning of the next part.
+         * Data read before calling this method for the first time is the preamble,
+         * and data read after this method returns false is the epilogue.
+         *
+         * @return true if successful, or false if there are no more parts
+         * @throws IOException if an error occurs
+         */
+        public boolean nextPart() throws IOException {
+            while (skip(buf.length) != 0); // skip current part (until boundary)
+            head = tail += len; // the next part starts right after boundary
+            state |= 1; // started data (after first boundary)
+            if (state >= 8) { // found last boundary
+                state |= 0x10; // now beyond last boundary (epilogue)
+                return false;
+            }
+            if (++parts > maxParts && maxParts > 0)
+                throw new IOException("multipart exceeds maximum number of parts (" + maxParts + ")");
+            findBoundary(); // update indices
+            return true;
+        }
+
+        /**
+         * Fills the buffer with more data from the underlying stream.
+         *
+         * @return true if there is available data for the current part,
+         *         or false if the current part's end has been reached
+         * @throws IOException if an error occurs or the input format is invalid
+         */
+        protected boolean fill() throws IOException {
+            // check if we already have more available data
+            if (head != tail) // remember that if we continue, head == tail below
+                return true;
+            // if there's no more room, shift extra unread data to beginning of buffer
+            if (tail > buf.length - 256) { // max boundary + whitespace supported size
+                System.arraycopy(buf, tail, buf, 0, end -= tail);
+                head = tail = 0;
+            }
+            // read more data and look for boundary (or potential partial boundary)
+            int read;
+            do {
+                read = super.read(buf, end, buf.length - end);
+                if (read < 0)
+                    state |= 4; // end of stream (EOS)
+                else
+                    end += read;
+                if (read > 0 && (size += read) > maxSize && maxSize > 0)
+                    throw new IOException("multipart exceeds maximum size (" + maxSize + ")");
+                findBoundary(); // updates tail and length to next potential boundary
+                // if we found a partial boundary with no data before it, we must
+                // continue reading to determine if there is more data or not
+            } while (read > 0 && tail == head && len == 0);
+            // update and validate state
+            if (tail != 0) // anything but a boundary right at the beginning
+                state |= 1; // started data (preamble or after boundary)
+            if (state < 8 && len > 0)
+                state |= 2; // found start boundary
+            if ((state & 6) == 4 // EOS but no start boundary found
+                || len == 0 && ((state & 0xFC) == 4 // EOS but no last and no more boundaries
+                    || read == 0 && tail == head)) // boundary longer than buffer
+                        throw new IOException("missing boundary");
+            if (state >= 0x10) // in epilogue
+                tail = end; // ignore boundaries, return everything
+            return tail > head; // available data in current part
+        }
+
+        /**
+         * Finds the first (potential) boundary within the buffer's remaining data.
+         * Updates tail, length and state fields accordingly.
+         *
+         * @throws IOException if an error occurs or the input format is invalid
+         */
+        protected void findBoundary() throws IOException {
+            // see RFC2046#5.1.1 for boundary syntax
+            len = 0;
+            int end = this.end;
+            if ((state & 1) == 0 && buf[0] == '-' && tail < end) { // leading CRLF is optional at first boundary
+                if (matchBoundary(tail - 2))
+                    return;
+                tail++;
+            }
+            // skip to the first full boundary, or to where a partial boundary may be cut off
+            tail = searchBoundary(tail, end - boundary.length - 1);
+            for (; tail < end; tail++)
+                if (matchBoundary(tail))
+                    return;
+        }
+
+        /**
+         * Searches the buffer for the first position at which the full boundary value
+         * (excluding what follows it) appears, using the Boyer-Moore-Horspool algorithm.
+         *
+         * @param from the first position to search (inclusive)
+         * @param to the last position to search (exclusive)
+         * @return the first position at which the boundary value appears, or
+         *         the given last position (or first, if greater) if it was not found
+         */
+        protected int searchBoundary(int from, int to) {
+            byte[] b = boundary;
+            int last = b.length - 1;
+            for (int pos = from; pos < to; pos += skip[buf[pos + last] & 0xFF]) {
+                int i = last;
+                while (i >= 0 && buf[pos + i] == b[i])
+                    i--;
+                if (i < 0)
+                    return pos;
+            }
+            return Math.max(from, to);
+        }
+
+        /**
+         * Checks whether the data at the current tail position is a (potential) boundary.
+         * Updates length and state fields accordingly.
+         *
+         * @param off the position corresponding to the start of the boundary value
+         *        (which is before the tail if the leading CRLF is omitted)
+         * @return true if a full or potential partial boundary was found at tail
+         * @throws IOException if an error occurs or the input format is invalid
+         */
+        protected boolean matchBoundary(int off) throws IOException {
+            int end = this.end;
+            int j = tail; // end of potential boundary
+            // try to match boundary value
+            while (j < end && j - off < boundary.length && buf[j] == boundary[j - off])
+                j++;
+            // return potential partial boundary which is cut off at end of current data
+            if (j + 1 >= end) // at least two more chars needed for full boundary (CRLF or --)
+                return true;
+            // if we found the boundary value, expand selection to include full line
+            if (j - off == boundary.length) {
+                // check if last boundary of entire multipart
+                if (buf[j] == '-' && buf[j + 1] == '-') {
+                    j += 2;
+                    state |= 8; // found last boundary that ends multipart
+                }
+                // allow linear whitespace after boundary
+                while (j < end && (buf[j] == ' ' || buf[j] == '\t'))
+                    j++;
+                // check for CRLF (required, except in last boundary with no epilogue)
+                if (j + 1 < end && buf[j] == '\r' && buf[j + 1] == '\n') // found CRLF
+                    len = j - tail + 2; // including optional whitespace and CRLF
+                else if (j + 1 < end || (state & 4) != 0 && j + 1 == end) // should have found or never will
+                    throw new IOException("boundary must end with CRLF");
+                else if ((state & 4) != 0) // last boundary with no CRLF at end of data is valid
+                    len = j - tail;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The {@code MultipartIterator} iterates over the parts of a multipart/form-data request.
+     * <p>
+     * For example, to support file upload from a web browser:
+     * <ol>
+     * <li>Create an HTML form which includes an input field of type "file", attributes
+     *     method="post" and enctype="multipart/form-data", and an action URL of your choice,
+     *     for example action="/upload". This form can be served normally like any other
+     *     resource, e.g. from an HTML file on disk.
+     * <li>Add a context handler for the action path ("/upload" in this example), using either
+     *     the explicit {@link VirtualHost#addContext} method or the {@link Context} annotation.
+     * <li>In the context handler implementation, construct a {@code MultipartIterator} from
+     *     the client {@code Request}.
+     * <li>Iterate over the form {@link Part}s, processing each named field as appropriate -
+     *     for the file input field, read the uploaded file using the body input stream.
+     * </ol>
+     */
+    public static class MultipartIterator implements Iterator<MultipartIterator.Part> {
+
+        /**
+         * The {@code Part} class encapsulates a single part of the multipart.
+         */
+        public static class Part {
+
+            public String name;
+            public String filename;
+            public Headers headers;
+            public InputStream body;
+            public byte[] content; // body saved in memory
+            public File file; // body saved to file
+
+            /**
+             * Returns the part's name (form field name).
+             *
+             * @return the part's name
+             */
+            public String getName() { return name; }
+
+            /**
+             * Returns the part's filename (original filename entered in file form field).
+             *
+             * @return the part's filename, or null if there is none
+             */
+            public String getFilename() { return filename; }
+
+            /**
+             * Returns the part's headers.
+             *
+             * @return the part's headers
+             */
+            public Headers getHeaders() { return headers; }
+
+            /**
+             * Returns the part's body (form field value).
+             *
+             * @return the part's body
+             */
+            public InputStream getBody() { return body; }
+
+            /**
+             * Returns the part's body content, if it was {@link #save saved} in memory.
+             *
+             * @return the part's body content, or null if it was not saved in memory
+             */
+            public byte[] getContent() { return content; }
+
+            /**
+             * Returns the file containing the part's body, if it was {@link #save saved} to a file.
+             *
+             * @return the file containing the part's body, or null if it was not saved to a file
+             */
+            public File getFile() { return file; }
+
+            /***
+             * Returns the part's body as a string. If the part
+             * headers do not specify a charset, UTF-8 is used.
+             *
+             * @return the part's body as a string
+             * @throws IOException if an IO error occurs
+             */
+            public String getString() throws IOException {
+                String charset = headers.getParams("Content-Type").get("charset");
+                charset = charset == null ? "UTF-8" : charset;
+                return content != null ? new String(content, charset) : readToken(body, -1, charset, 8192);
+            }
+
+            /**
+             * Transfers the part's body to the given channel. The body is written
+             * directly from the multipart stream's buffer, without further copying.
+             *
+             * @param ch the channel to which the body is written
+             * @return the number of bytes transferred
+             * @throws IOException if an IO error occurs
+             */
+            public long transferTo(WritableByteChannel ch) throws IOException {
+                if (body instanceof MultipartInputStream)
+                    return ((MultipartInputStream)body).transferTo(ch);
+                long count = 0;
+                byte[] b = new byte[8192];
+                for (int n; (n = body.read(b)) != -1; count += n) {
+                    ByteBuffer data = ByteBuffer.wrap(b, 0, n);
+                    while (data.hasRemaining())
+                        ch.write(data);
+                }
+                return count;
+            }
+
+            /**
+             * Transfers the part's body to the given file, replacing its content.
+             *
+             * @param file the file to which the body is written
+             * @return the number of bytes transferred
+             * @throws IOException if an IO error occurs
+             */
+            public long transferTo(File file) throws IOException {
+                FileOutputStream out = new FileOutputStream(file);
+                try {
+                    return transferTo(out.getChannel());
+                } finally {
+                    out.close();
+                }
+            }
+
+            /**
+             * Saves the part's body, so that it remains available after the
+             * iteration proceeds to the next part. If the body's size does not
+             * exceed the given threshold, it is kept in memory (see {@link
+             * #getContent}), otherwise it is streamed to a new temporary file
+             * in the given directory (see {@link #getFile}), which the caller
+             * is responsible for deleting. In either case, the part's body
+             * stream is replaced with one that reads the saved body. A saved
+             * file is opened only once its body stream is read, and is closed
+             * when the stream is closed or reaches its end, so callers which
+             * use only the file hold no open file descriptor.
+             *
+             * @param threshold the maximum size of a body that is kept in memory
+             *        (between 0 and {@code Integer.MAX_VALUE - 8}, inclusive)
+             * @param dir the directory in which the temporary file is created,
+             *        or null for the default temporary-file directory
+             * @throws IllegalArgumentException if the threshold is out of range
+             * @throws IOException if an IO error occurs
+             */
+            public void save(int threshold, File dir) throws IOException {
+                if (threshold < 0 || threshold > Integer.MAX_VALUE - 8) // max array size
+                    throw new IllegalArgumentException("invalid threshold: " + threshold);
+                // read up to one byte beyond the threshold to see if the body fits
+                byte[] b = new byte[(int)Math.min(threshold + 1L, 8192)];
+                int count = 0;
+                for (int n; count <= threshold && (n = body.read(b, count, b.length - count)) != -1; ) {
+                    count += n;
+                    if (count == b.length && count <= threshold)
+                        b = Arrays.copyOf(b, (int)Math.min(threshold + 1L, 2L * b.length));
+                }
+                if (count <= threshold) {
+                    content = Arrays.copyOf(b, count);
+                    body = new ByteArrayInputStream(content);
+                    return;
+                }
+                File f = File.createTempFile("upload", null, dir);
+                try {
+                    FileOutputStream out = new FileOutputStream(f);
+                    try {
+                        FileChannel ch = out.getChannel();
+                        ByteBuffer data = ByteBuffer.wrap(b, 0, count);
+                        while (data.hasRemaining())
+                            ch.write(data);
+                        transferTo(ch);
+                    } finally {
+                        out.close();
+                    }
+                } catch (IOException ioe) {
+                    f.delete();
+                    throw ioe;
+                }
+                file = f;
+                body = new InputStream() {
+                    InputStream in; // opened lazily
+                    boolean closed;
+
+                    InputStream in() throws IOException {
+                        return in != null ? in : (in = new FileInputStream(file));
+                    }
+
+                    @Override
+                    public int read() throws IOException {
+                        if (closed)
+                            return -1;
+                        int b = in().read();
+                        if (b < 0)
+                            close();
+                        return b;
+                    }
+
+                    @Override
+                    public int read(byte[] b, int off, int len) throws IOException {
+                        if (closed)
+                            return -1;
+                        int count = in().read(b, off, len);
+                        if (count < 0)
+                            close();
+                        return count;
+                    }
+
+                    @Override
+                    public long skip(long len) throws IOException {
+                        return closed ? 0 : in().skip(len);
+                    }
+
+                    @Override
+                    public int available() throws IOException {
+                        return in == null || closed ? 0 : in.available();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        closed = true;
+                        if (in != null)
+                            in.close();
+                    }
+                };
+            }
+        }
+
+        protected final MultipartInputStream in;
+        protected boolean next;
+
+        /**
+         * Creates a new MultipartIterator from the given request.
+         *
+         * @param req the multipart/form-data request
+         * @throws IOException if an IO error occurs
+         * @throws IllegalArgumentException if the given request's content type
+         *         is not multipart/form-data, or is missing the boundary
+         */
+        public MultipartIterator(Request req) throws IOException {
+            this(req, 16384);
+        }
+
+        /**
+         * Creates a new MultipartIterator from the given request, which
+         * reads its body using a buffer of the given size. A large buffer
+         * is recommended when streaming large parts, e.g. via
+         * {@link Part#transferTo(File)}.
+         *
+         * @param req the multipart/form-data request
+         * @param bufferSize the buffer size (at least 512 bytes)
+         * @throws IOException if an IO error occurs
+         * @throws IllegalArgumentException if the given request's content type
+         *         is not multipart/form-data, or is missing the boundary,
+         *         or the buffer size is too small
+         */
+        public MultipartIterator(Request req, int bufferSize) throws IOException {
+            Map<String, String> ct = req.getHeaders().getParams("Content-Type");
+            if (!ct.containsKey("multipart/form-data"))
+                throw new IllegalArgumentException("Content-Type is not multipart/form-data");
+            String boundary = ct.get("boundary"); // should be US-ASCII
+            if (boundary == null)
+                throw new IllegalArgumentException("Content-Type is missing boundary");
+            in = new MultipartInputStream(req.getBody(), getBytes(boundary), bufferSize);
+        }
+
+        /**
+         * Sets limits on the multipart which are enforced while it is read,
+         * so that oversized uploads fail early rather than after being received.
+         * Exceeding a limit causes an IOException (which may be wrapped in a
+         * RuntimeException when thrown from an iterator method).
+         *
+         * @param maxSize the maximum total size of the multipart (including
+         *        headers and boundaries), or 0 for no limit
+         * @param maxParts the maximum number of parts, or 0 for no limit
+         */
+        public void setLimits(long maxSize, int maxParts) {
+            in.setLimits(maxSize, maxParts);
+        }
+
+        public boolean hasNext() {
+            try {
+                return next || (next = in.nextPart());
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+        }
+
+        public Part next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            next = false;
+            Part p = new Part();
+            try {
+                p.headers = readHeaders(in);
+            } catch (IOException ioe) {
+                throw new RuntimeException(ioe);
+            }
+            Map<String, String> cd = p.headers.getParams("Content-Disposition");
+            p.name = cd.get("name");
+            p.filename = cd.get("filename");
+            p.body = in;
+            return p;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * The {@code VirtualHost} class represents a virtual host in the server.
+     */
+    public static class VirtualHost {
+
+        /**
+         * The {@code ContextInfo} class holds a single context's information.
+         */
+        public class ContextInfo {
+
+            protected final String path;
+            protected final Map<String, ContextHandler> handlers =
+                new ConcurrentHashMap<String, ContextHandler>(2);
+            protected final Map<String, Bulkhead> bulkheads =
+                new ConcurrentHashMap<String, Bulkhead>(2);
+            protected volatile Bulkhead bulkhead;
+            protected volatile int compression = CompressionPolicy.FULL;
+            protected volatile int asyncTimeout = -1;
+
+            /**
+             * Constructs a ContextInfo with the given context path.
+             *
+             * @param path the context path (without trailing slash)
+             */
+            public ContextInfo(String path) {
+                this.path = path;
+            }
+
+            /**
+             * Returns the context path.
+             *
+             * @return the context path, or null if there is none
+             */
+            public String getPath() {
+                return path;
+            }
+
+            /**
+             * Returns the map of supported HTTP methods and their corresponding handlers.
+             *
+             * @return the map of supported HTTP methods and their corresponding handlers
+             */
+            public Map<String, ContextHandler> getHandlers() {
+                return handlers;
+            }
+
+            /**
+             * Adds (or replaces) a context handler for the given HTTP methods.
+             *
+             * @param handler the context handler
+             * @param methods the HTTP methods supported by the handler (default is "GET")
+             */
+            public void addHandler(ContextHandler handler, String... methods) {
+                if (methods.length == 0)
+                    methods = new String[] { "GET" };
+                for (String method : methods) {
+                    handlers.put(method, handler);
+                    VirtualHost.this.methods.add(method); // it's now supported by server
+                }
+            }
+
+            /**
+             * Adds (or replaces) a context handler for the given HTTP methods,
+             * which will be served within the given bulkhead.
+             *
+             * @param handler the context handler
+             * @param bulkhead the bulkhead within which the handler is served,
+             *        or null to use the context's bulkhead (if any)
+             * @param methods the HTTP methods supported by the handler (default is "GET")
+             */
+            public void addHandler(ContextHandler handler, Bulkhead bulkhead, String... methods) {
+                if (methods.length == 0)
+                    methods = new String[] { "GET" };
+                for (String method : methods) {
+                    if (bulkhead == null)
+                        bulkheads.remove(method);
+                    else
+                        bulkheads.put(method, bulkhead);
+                }
+                addHandler(handler, methods);
+            }
+
+            /**
+             * Sets the bulkhead within which all of this context's handlers are
+             * served, except for those methods that were given their own bulkhead.
+             *
+             * @param bulkhead the context's bulkhead, or null for none
+             */
+            public void setBulkhead(Bulkhead bulkhead) {
+                this.bulkhead = bulkhead;
+            }
+
+            /**
+             * Sets the maximum compression mode applied to this context's responses,
+             * e.g. {@link CompressionPolicy#FAST} for latency-sensitive endpoints, or
+             * {@link CompressionPolicy#IDENTITY} for ones whose content does not compress well.
+             *
+             * @param mode the compression mode (one of the {@link CompressionPolicy} modes)
+             */
+            public void setCompression(int mode) {
+                this.compression = mode;
+            }
+
+            /**
+             * Returns the maximum compression mode applied to this context's responses.
+             *
+             * @return the compression mode (one of the {@link CompressionPolicy} modes)
+             */
+            public int getCompression() {
+                return compression;
+            }
+
+            /**
+             * Sets the timeout for this context's {@link AsyncContextHandler
+             * asynchronous handlers}, overriding the server's {@link
+             * HTTPServer#setAsyncTimeout async timeout}.
+             *
+             * @param timeout the timeout in milliseconds, 0 for no timeout,
+             *        or negative to use the server's timeout
+             */
+            public void setAsyncTimeout(int timeout) {
+                this.asyncTimeout = timeout;
+            }
+
+            /**
+             * Returns the timeout for this context's asynchronous handlers.
+             *
+             * @return the timeout in milliseconds, 0 for no timeout,
+             *         or negative if the server's timeout is used
+             */
+            public int getAsyncTimeout() {
+                return asyncTimeout;
+            }
+
+            /**
+             * Returns the bulkhead within which the handler of the given HTTP method is served.
+             *
+             * @param method the HTTP method
+             * @return the method's bulkhead, or the context's bulkhead if the method
+             *         has none of its own, or null if there is neither
+             */
+            public Bulkhead getBulkhead(String method) {
+                Bulkhead b = bulkheads.isEmpty() ? null : bulkheads.get(method);
+                return b != null ? b : bulkhead;
+            }
+        }
+
+        /**
+         * The {@code ContextNode} class is a node in an immutable radix tree
+         * of context paths, which finds the longest context path matching
+         * a given path in a single pass over its characters and without
+         * allocating any objects.
+         */
+        protected static class ContextNode {
+
+            protected final String label; // path characters following the parent's
+            protected final ContextInfo info; // the context ending at this node, or null
+            protected final char[] keys; // sorted first label characters of children
+            protected final ContextNode[] children;
+
+            /**
+             * Constructs a tree (or subtree) of the given context paths.
+             *
+             * @param paths the sorted context paths
+             * @param from the index of the first path in the subtree (inclusive)
+             * @param to the index of the last path in the subtree (exclusive)
+             * @param depth the length of the common prefix consumed by this node's ancestors
+             * @param contexts the contexts mapped by their paths
+             */
+            protected ContextNode(String[] paths, int from, int to, int depth,
+                                  Map<String, ContextInfo> contexts) {
+                // since paths are sorted, the first and last share the longest common prefix
+                String first = paths[from];
+                String last = paths[to - 1];
+                int end = depth;
+                while (end < first.length() && end < last.length() && first.charAt(end) == last.charAt(end))
+                    end++;
+                label = first.substring(depth, end);
+                info = first.length() == end ? contexts.get(first) : null;
+                if (info != null)
+                    from++; // a path that ends here sorts first among its subtree
+                // group the remaining paths into children by their next character
+                int count = 0;
+                for (int i = from; i < to; i++)
+                    if (i == from || paths[i].charAt(end) != paths[i - 1].charAt(end))
+                        count++;
+                keys = new char[count];
+                children = new ContextNode[count];
+                for (int i = from, child = 0; i < to; child++) {
+                    char c = paths[i].charAt(end);
+                    int j = i + 1;
+                    while (j < to && paths[j].charAt(end) == c)
+                        j++;
+                    keys[child] = c;
+                    children[child] = new ContextNode(paths, i, j, end, contexts);
+                    i = j;
+                }
+            }
+
+            /**
+             * Returns the context with the longest path which is the given path
+             * or one of its parents, ignoring trailing slashes.
+             *
+             * @param path the path
+             * @return the matching context, or null if there is none
+             */
+            protected ContextInfo find(String path) {
+                int end = path.length();
+                while (end > 0 && path.charAt(end - 1) == '/')
+                    end--; // ignore trailing slashes
+                ContextInfo match = null;
+                int pos = 0;
+                for (ContextNode node = this; node != null; ) {
+                    int len = node.label.length();
+                    if (pos + len > end || !path.regionMatches(pos, node.label, 0, len))
+                        break;
+                    pos += len;
+                    // a context matches if it ends at a path segment boundary
+                    if (node.info != null && (pos == end || path.charAt(pos) == '/'))
+                        match = node.info;
+                    if (pos == end)
+                        break;
+                    int child = Arrays.binarySearch(node.keys, path.charAt(pos));
+                    node = child < 0 ? null : node.children[child];
+                }
+                return match;
+            }
+        }
+
+        protected final String name;
+        protected final Set<String> aliases = new CopyOnWriteArraySet<String>();
+        protected volatile String directoryIndex = "index.html";
+        protected volatile boolean allowGeneratedIndex;
+        protected final Set<String> methods = new CopyOnWriteArraySet<String>();
+        protected final ContextInfo emptyContext = new ContextInfo(null);
+        protected final ConcurrentMap<String, ContextInfo> contexts =
+            new ConcurrentHashMap<String, ContextInfo>();
+        protected volatile ContextNode contextTree;
+
+        /**
+         * Constructs a VirtualHost with the given name.
+         *
+         * @param name the host's name, or null if it is the default host
+         */
+        public VirtualHost(String name) {
+            this.name = name;
+            contexts.put("*", new ContextInfo(null)); // for "OPTIONS *"
+            rebuildContextTree();
+        }
+
+        /**
+         * Returns this host's name.
+         *
+         * @return this host's name, or null if it is the default host
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Adds an alias for this host.
+         *
+         * @param alias the alias
+         */
+        public void addAlias(String alias) {
+            aliases.add(alias);
+        }
+
+        /**
+         * Returns this host's aliases.
+         *
+         * @return the (unmodifiable) set of aliases (which may be empty)
+         */
+        public Set<String> getAliases() {
+            return Collections.unmodifiableSet(aliases);
+        }
+
+        /**
+         * Sets the directory index file. For every request whose URI ends with
+         * a '/' (i.e. a directory), the index file is appended to the path,
+         * and the resulting resource is served if it exists. If it does not
+         * exist, an auto-generated index for the requested directory may be
+         * served, depending on whether {@link #setAllowGeneratedIndex
+         * a generated index is allowed}, otherwise an error is returned.
+         * The default directory index file is "index.html".
+         *
+         * @param directoryIndex the directory index file, or null if no
+         *        index file should be used
+         */
+        public void setDirectoryIndex(String directoryIndex) {
+            this.directoryIndex = directoryIndex;
+        }
+
+        /**
+         * Gets this host's directory index file.
+         *
+         * @return the directory index file, or null
+         */
+        public String getDirectoryIndex() {
+            return directoryIndex;
+        }
+
+        /**
+         * Sets whether auto-generated indices are allowed. If false, and a
+         * directory resource is requested, an error will be returned instead.
+         *
+         * @param allowed specifies whether generated indices are allowed
+         */
+        public void setAllowGeneratedIndex(boolean allowed) {
+            this.allowGeneratedIndex = allowed;
+        }
+
+        /**
+         * Returns whether auto-generated indices are allowed.
+         *
+         * @return whether auto-generated indices are allowed
+         */
+        public boolean isAllowGeneratedIndex() {
+            return allowGeneratedIndex;
+        }
+
+        /**
+         * Returns all HTTP methods explicitly supported by at least one context
+         * (this may or may not include the methods with required or built-in support).
+         *
+         * @return all HTTP methods explicitly supported by at least one context
+         */
+        public Set<String> getMethods() {
+            return methods;
+        }
+
+        /**
+         * Returns the context handler for the given path.
+         * <p>
+         * If a context is not found for the given path, the search is repeated for
+         * its parent path, and so on until a base context is found. If neither the
+         * given path nor any of its parents has a context, an empty context is returned.
+         *
+         * @param path the context's path
+         * @return the context info for the given path, or an empty context if none exists
+         */
+        public ContextInfo getContext(String path) {
+            ContextInfo info = contextTree.find(path);
+            return info != null ? info : emptyContext;
+        }
+
+        /**
+         * Rebuilds the context tree used to look up contexts from the current
+         * contexts. The tree is immutable, so lookups can proceed concurrently
+         * and see either the previous tree or the new one.
+         */
+        protected void rebuildContextTree() {
+            synchronized (contexts) {
+                String[] paths = contexts.keySet().toArray(new String[0]);
+                Arrays.sort(paths);
+                contextTree = new ContextNode(paths, 0, paths.length, 0, contexts);
+            }
+        }
+
+        /**
+         * Adds a context and its corresponding context handler to this server.
+         * Paths are normalized by removing trailing slashes (except the root).
+         *
+         * @param path the context's path (must start with '/')
+         * @param handler the context handler for the given path
+         * @param methods the HTTP methods supported by the context handler (default is "GET")
+         * @throws IllegalArgumentException if path is malformed
+         */
+        public void addContext(String path, ContextHandler handler, String... methods) {
+            if (path == null || !path.startsWith("/") && !path.equals("*"))
+                throw new IllegalArgumentException("invalid path: " + path);
+            path = trimRight(path, '/'); // remove trailing slash
+            ContextInfo info = new ContextInfo(path);
+            ContextInfo existing = contexts.putIfAbsent(path, info);
+            if (existing == null)
+                rebuildContextTree();
+            info = existing != null ? existing : info;
+            info.addHandler(handler, methods);
+        }
+
+        /**
+         * Adds contexts for all methods of the given object that
+         * are annotated with the {@link Context} annotation.
+         *
+         * @param o the object whose annotated methods are added
+         * @throws IllegalArgumentException if a Context-annotated
+         *         method has an {@link Context invalid signature}
+         */
+        public void addContexts(Object o) throws IllegalArgumentException {
+            for (Class<?> c = o.getClass(); c != null; c = c.getSuperclass()) {
+                // add to contexts those with @Context annotation
+                for (Method m : c.getDeclaredMethods()) {
+                    Context context = m.getAnnotation(Context.class);
+                    if (context != null) {
+                        m.setAccessible(true); // allow access to private method
+                        ContextHandler handler = new MethodContextHandler(m, o);
+                        addContext(context.value(), handler, context.methods());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The {@code Context} annotation decorates methods which are mapped
+     * to a context (path) within the server, and provide its contents.
+     * <p>
+     * The annotated methods must have the same signature and contract
+     * as {@link ContextHandler#serve}, but can have arbitrary names.
+     *
+     * @see VirtualHost#addContexts(Object)
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.METHOD)
+    public @interface Context {
+
+        /**
+         * The context (path) that this field maps to (must begin with '/').
+         *
+         * @return the context (path) that this field maps to
+         */
+        String value();
+
+        /**
+         * The HTTP methods supported by this context handler (default is "GET").
+         *
+         * @return the HTTP methods supported by this context handler
+         */
+        String[] methods() default "GET";
+    }
+
+    /**
+     * A {@code ContextHandler} serves the content of resources within a context.
+     *
+     * @see VirtualHost#addContext
+     */
+    public interface ContextHandler {
+
+        /**
+         * Serves the given request using the given response.
+         *
+         * @param req the request to be served
+         * @param resp the response to be filled
+         * @return an HTTP status code, which will be used in returning
+         *         a default response appropriate for this status. If this
+         *         method invocation already sent anything in the response
+         *         (headers or content), it must return 0, and no further
+         *         processing will be done
+         * @throws IOException if an IO error occurs
+         */
+        int serve(Request req, Response resp) throws IOException;
+    }
+
+    /**
+     * An {@code AsyncContextHandler} serves the content of resources within
+     * a context asynchronously, so that the connection's thread need not wait
+     * while the handler waits for something else, such as a backend service.
+     * <p>
+     * The server completes the transaction (sending a default response for the
+     * returned status if necessary, closing the response, consuming any unread
+     * request body, and proceeding to the connection's next request) when the
+     * returned stage completes. In {@link #setNonBlocking non-blocking mode}
+     * the connection's thread is released in the meantime, while otherwise it
+     * waits for the stage to complete. If the stage does not complete within
+     * the server's {@link #setAsyncTimeout async timeout}, a 503 (Service
+     * Unavailable) response is sent (if possible) and the connection is closed,
+     * after which the handler must no longer use the response.
+     * <p>
+     * Asynchronous handlers are invoked with the request path as-is, without
+     * the virtual host's directory index being applied. Within a {@link Bulkhead},
+     * they are served synchronously via {@link #serve}, i.e. the bulkhead's thread
+     * waits for the stage to complete.
+     *
+     * @see VirtualHost#addContext
+     */
+    public interface AsyncContextHandler extends ContextHandler {
+
+        /**
+         * Serves the given request using the given response, asynchronously.
+         *
+         * @param req the request to be served
+         * @param resp the response to be filled
+         * @return a stage (not null) which completes with an HTTP status code, which
+         *         will be used in returning a default response appropriate for this
+         *         status. If the handler already sent anything in the response
+         *         (headers or content), the stage must complete with 0, and no
+         *         further processing will be done
+         * @throws IOException if an IO error occurs
+         */
+        CompletionStage<Integer> serveAsync(Request req, Response resp) throws IOException;
+
+        /**
+         * Serves the given request using the given response, waiting
+         * for the {@link #serveAsync asynchronous result} to complete.
+         *
+         * @param req the request to be served
+         * @param resp the response to be filled
+         * @return the HTTP status code with which the asynchronous result completed
+         * @throws IOException if an IO error occurs, or the asynchronous
+         *         result completes exceptionally with an IOException
+         */
+        default int serve(Request req, Response resp) throws IOException {
+            try {
+                return serveAsync(req, resp).toCompletableFuture().get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for handler");
+            } catch (ExecutionException ee) {
+                throw toIOException(ee.getCause());
+            }
+        }
+    }
+
+    /**
+     * A {@code Bulkhead} isolates the handlers of a context (or some of its
+     * methods) from the rest of the server, so that a slow or overloaded
+     * endpoint cannot exhaust the threads that serve all other requests.
+     * <p>
+     * A bulkhead may limit the number of requests that are in flight within
+     * it at any given time, in which case additional requests are rejected
+     * immediately with a 503 (Service Unavailable) response rather than
+     * queued, and it may also run its handlers on a dedicated executor,
+     * in which case the connection thread hands the request off to the
+     * executor and waits for it to complete. A request that is rejected
+     * by the executor is likewise answered with a 503 response.
+     *
+     * @see ContextInfo#setBulkhead
+     */
+    public static class Bulkhead {
+
+        protected final Executor executor;
+        protected final Semaphore permits;
+        protected final int maxInFlight;
+        protected final AtomicInteger inFlight = new AtomicInteger();
+        protected final AtomicLong rejected = new AtomicLong();
+
+        /**
+         * Constructs a Bulkhead.
+         *
+         * @param executor the executor on which handlers are run, or null
+         *        to run them on the connection thread itself
+         * @param maxInFlight the maximum number of requests that may be in flight
+         *        within the bulkhead at any given time, or 0 for no limit
+         * @throws IllegalArgumentException if maxInFlight is negative
+         */
+        public Bulkhead(Executor executor, int maxInFlight) {
+            if (maxInFlight < 0)
+                throw new IllegalArgumentException("invalid max in-flight: " + maxInFlight);
+            this.executor = executor;
+            this.maxInFlight = maxInFlight;
+            this.permits = maxInFlight > 0 ? new Semaphore(maxInFlight) : null;
+        }
+
+        /**
+         * Returns the executor on which handlers are run.
+         *
+         * @return the executor, or null if handlers run on the connection thread
+         */
+        public Executor getExecutor() {
+            return executor;
+        }
+
+        /**
+         * Returns the maximum number of requests that may be in flight
+         * within the bulkhead at any given time.
+         *
+         * @return the maximum number of in-flight requests, or 0 if unlimited
+         */
+        public int getMaxInFlight() {
+            return maxInFlight;
+        }
+
+        /**
+         * Returns the number of requests currently in flight within the bulkhead.
+         *
+         * @return the number of requests currently in flight
+         */
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        /**
+         * Returns the total number of requests which were rejected because
+         * the bulkhead was full or its executor did not accept them.
+         *
+         * @return the number of rejected requests
+         */
+        public long getRejectedCount() {
+            return rejected.get();
+        }
+
+        /**
+         * Runs the given task within the bulkhead, waiting for it to complete.
+         * Exceptions thrown by the task are rethrown as-is if they are
+         * IOExceptions, RuntimeExceptions or Errors, or wrapped in an IOException otherwise.
+         * <p>
+         * If the waiting thread is interrupted, the task is cancelled (interrupting
+         * it if it is running), but this method does not return until the task
+         * has actually finished, since it may still be using the transaction's
+         * response. The task's permit is released only once the task finishes.
+         *
+         * @param task the task to run, which must not return null
+         * @param <V> the task's result type
+         * @return the task's result, or null if it was rejected
+         *         because the bulkhead is full
+         * @throws IOException if an IO error occurs or the task throws an exception
+         */
+        public <V> V call(Callable<V> task) throws IOException {
+            if (permits != null && !permits.tryAcquire()) {
+                rejected.incrementAndGet();
+                return null;
+            }
+            inFlight.incrementAndGet();
+            if (executor == null) {
+                try {
+                    return task.call();
+                } catch (Exception e) {
+                    throw toIOException(e);
+                } finally {
+                    release();
+                }
+            }
+            final FutureTask<V> future = new FutureTask<V>(task);
+            final AtomicBoolean claimed = new AtomicBoolean(); // whether it was run or cancelled
+            final CountDownLatch done = new CountDownLatch(1);
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        if (!claimed.compareAndSet(false, true))
+                            return; // cancelled before it started
+                        try {
+                            future.run();
+                        } finally {
+                            release(); // only once the task has finished
+                            done.countDown();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                release();
+                rejected.incrementAndGet();
+                return null;
+            }
+            try {
+                return future.get();
+            } catch (InterruptedException ie) {
+                future.cancel(true);
+                if (claimed.compareAndSet(false, true)) { // it will never run
+                    release();
+                } else { // wait until it finishes using the response
+                    while (true) {
+                        try {
+                            done.await();
+                            break;
+                        } catch (InterruptedException ignore) {}
+                    }
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for handler");
+            } catch (ExecutionException ee) {
+                throw toIOException(ee.getCause());
+            }
+        }
+
+        /**
+         * Releases the in-flight count and permit held by a task.
+         */
+        protected void release() {
+            inFlight.decrementAndGet();
+            if (permits != null)
+                permits.release();
+        }
+    }
+
+    /**
+     * The {@code FileContextHandler} services a context by mapping it
+     * to a file or folder (recursively) on disk.
+     */
+    public static class FileContextHandler implements ContextHandler {
+
+        protected final File base;
+        protected volatile FileCache cache;
+
+        public FileContextHandler(File dir) throws IOException {
+            this.base = dir.getCanonicalFile();
+        }
+
+        /**
+         * Sets the cache used to serve frequently requested files without
+         * accessing the file system. The same cache may be shared by
+         * multiple handlers.
+         *
+         * @param cache the cache, or null if files should not be cached
+         */
+        public void setCache(FileCache cache) {
+            this.cache = cache;
+        }
+
+        public int serve(Request req, Response resp) throws IOException {
+            String context = req.getContext().getPath();
+            FileCache cache = this.cache;
+            FileCache.Entry entry = cache == null ? null
+                : cache.get(base, req.getPath().substring(context.length()));
+            if (entry == null) // not cacheable - let serveFile handle it
+                return serveFile(base, context, req, resp);
+            serveFileContent(entry, req, resp);
+            return 0;
+        }
+    }
+
+    /**
+     * The {@code FileCache} caches the metadata, common header values and
+     * (for small files) contents of files served by a {@link FileContextHandler},
+     * so that frequently requested files can be served without accessing the
+     * file system.
+     * <p>
+     * Entries are keyed by the requested path (before it is resolved into a
+     * canonical file), and are revalidated by checking the file's last modified
+     * time and length at most once per configurable interval. When the total
+     * size of the cached content exceeds the configured budget, the least
+     * recently used entries are evicted.
+     */
+    public static class FileCache {
+
+        /**
+         * The {@code Entry} class holds the cached information of a single file.
+         * <p>
+         * If a compressible file has an up-to-date precompressed sibling file
+         * (with an added ".gz" extension), the sibling's entry is held as well,
+         * so that it can be served to clients which accept gzip encoding.
+         */
+        public static class Entry {
+
+            protected final File file;
+            protected final long length;
+            protected final long lastModified;
+            protected final String modified; // formatted last modified date
+            protected final String etag;
+            protected final String contentType;
+            protected final String encoding; // content encoding of file, or null
+            protected final byte[] content;
+            protected final Entry gzip; // precompressed sibling file entry, or null
+            protected volatile long checked; // last validation time
+
+            /**
+             * Constructs an Entry with the given file's information.
+             *
+             * @param file the existing and readable file
+             * @param maxContentLength the maximum file length
+             *        whose content is read into memory
+             * @throws IOException if an error occurs
+             */
+            public Entry(File file, long maxContentLength) throws IOException {
+                this(file, getContentType(file.getName(), "application/octet-stream"), null, maxContentLength);
+            }
+
+            /**
+             * Constructs an Entry with the given file's information.
+             *
+             * @param file the existing and readable file
+             * @param contentType the content type of the (unencoded) file content
+             * @param encoding the content encoding applied to the file, or null
+             * @param maxContentLength the maximum file length
+             *        whose content is read into memory
+             * @throws IOException if an error occurs
+             */
+            protected Entry(File file, String contentType, String encoding, long maxContentLength) throws IOException {
+                this.file = file;
+                this.length = file.length();
+                this.lastModified = file.lastModified();
+                this.checked = System.currentTimeMillis();
+                this.modified = formatDate(Math.min(lastModified, checked)); // RFC7232#2.2.1
+                // a weak tag based on date, which differs between encoded representations
+                this.etag = "W/\"" + lastModified + (encoding == null ? "" : "-" + encoding) + "\"";
+                this.contentType = contentType;
+                this.encoding = encoding;
+                this.content = length <= Math.min(maxContentLength, Integer.MAX_VALUE - 8)
+                    ? read(file, length, lastModified) : null;
+                File gz = encoding != null || !isCompressible(contentType) ? null : new File(file.getPath() + ".gz");
+                this.gzip = gz != null && gz.isFile() && gz.canRead() && gz.lastModified() >= lastModified
+                    ? new Entry(gz, contentType, "gzip", maxContentLength) : null;
+            }
+
+            /**
+             * Returns whether this entry is still valid, i.e. its file (and
+             * precompressed sibling, if any) have not been modified.
+             *
+             * @return whether this entry is still valid
+             */
+            public boolean isValid() {
+                return file.lastModified() == lastModified && file.length() == length
+                    && (gzip == null || gzip.isValid());
+            }
+
+            /**
+             * Reads the content of the given file.
+             *
+             * @param file the file
+             * @param length the file length
+             * @param lastModified the file's last modified time
+             * @return the file content, or null if the file
+             *         was modified while it was being read
+             * @throws IOException if an error occurs
+             */
+            protected static byte[] read(File file, long length, long lastModified) throws IOException {
+                byte[] b = new byte[(int)length];
+                InputStream in = new FileInputStream(file);
+                try {
+                    int count = 0;
+                    for (int n; count < b.length && (n = in.read(b, count, b.length - count)) > 0; count += n);
+                    return count == b.length && in.read() < 0
+                        && file.lastModified() == lastModified ? b : null;
+                } finally {
+                    in.close();
+                }
+            }
+
+            /**
+             * Returns the (approximate) number of bytes of memory this entry occupies.
+             *
+             * @return the number of bytes of memory this entry occupies
+             */
+            public long getSize() {
+                return 256 + (content == null ? 0 : content.length) + (gzip == null ? 0 : gzip.getSize());
+            }
+        }
+
+        protected final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        protected final long maxSize;
+        protected final long maxContentLength;
+        protected final long interval;
+        protected long size; // total size of all entries
+
+        /**
+         * Constructs a FileCache.
+         *
+         * @param maxSize the maximum total size (in bytes) of cached entries
+         * @param maxContentLength the maximum length of a file whose content
+         *        is cached (larger files have only their metadata cached)
+         * @param interval the minimum time (in milliseconds) between
+         *        revalidations of an entry against its file
+         */
+        public FileCache(long maxSize, long maxContentLength, long interval) {
+            this.maxSize = maxSize;
+            this.maxContentLength = maxContentLength;
+            this.interval = interval;
+        }
+
+        /**
+         * Returns the entry for the given requested file, loading it if necessary.
+         * Only regular files that would be served by {@link #serveFile} can be cached.
+         *
+         * @param base the base directory to which the context is mapped
+         * @param relativePath the requested path relative to the base directory
+         * @return the (valid) entry for the given file, or null if it cannot be cached
+         * @throws IOException if an error occurs
+         */
+        public Entry get(File base, String relativePath) throws IOException {
+            String key = base.getPath() + relativePath;
+            Entry entry;
+            synchronized (this) {
+                entry = entries.get(key);
+            }
+            long now = System.currentTimeMillis();
+            if (entry != null) {
+                if (now - entry.checked < interval)
+                    return entry;
+                if (entry.isValid()) {
+                    entry.checked = now;
+                    return entry;
+                }
+                remove(key);
+            }
+            // validate the same way as serveFile does
+            File file = new File(base, relativePath).getCanonicalFile();
+            if (relativePath.endsWith("/") || !file.isFile() || file.isHidden() || file.getName().startsWith(".")
+                    || !file.canRead() || !file.getPath().startsWith(base.getPath()))
+                return null;
+            entry = new Entry(file, maxContentLength);
+            put(key, entry);
+            return entry;
+        }
+
+        /**
+         * Adds an entry to the cache, evicting the least recently
+         * used entries as necessary.
+         *
+         * @param key the entry key
+         * @param entry the entry
+         */
+        protected synchronized void put(String key, Entry entry) {
+            Entry prev = entries.put(key, entry);
+            size += entry.getSize() - (prev == null ? 0 : prev.getSize());
+            for (Iterator<Entry> it = entries.values().iterator(); size > maxSize && it.hasNext(); ) {
+                size -= it.next().getSize();
+                it.remove();
+            }
+        }
+
+        /**
+         * Removes an entry from the cache.
+         *
+         * @param key the entry key
+         */
+        protected synchronized void remove(String key) {
+            Entry entry = entries.remove(key);
+            if (entry != null)
+                size -= entry.getSize();
+        }
+
+        /**
+         * Removes all entries from the cache.
+         */
+        public synchronized void clear() {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    /**
+     * The {@code CompressionCache} caches compressed response bodies, so that
+     * repeated responses with the same representation are not compressed again,
+     * and can be sent with a known length rather than with chunked encoding.
+     * <p>
+     * Each resource key (e.g. a file path or a handler-supplied key) holds at most
+     * one compressed body per encoding, which is valid only for its ETag. When the
+     * total size of the cached bodies exceeds the configured budget, the least
+     * recently used ones are evicted.
+     *
+     * @see Response#send(int, byte[], long, String, String, long[], String)
+     */
+    public static class CompressionCache {
+
+        protected final Map<String, Object[]> entries = // key+encoding -> etag, body
+            new LinkedHashMap<String, Object[]>(16, 0.75f, true);
+        protected final long maxSize;
+        protected final int maxContentLength;
+        protected long size; // total size of all cached bodies
+
+        /**
+         * Constructs a CompressionCache.
+         *
+         * @param maxSize the maximum total size (in bytes) of cached bodies
+         * @param maxContentLength the maximum length of an (uncompressed)
+         *        body which is compressed into the cache
+         */
+        public CompressionCache(long maxSize, int maxContentLength) {
+            this.maxSize = maxSize;
+            this.maxContentLength = maxContentLength;
+        }
+
+        /**
+         * Returns the maximum length of an (uncompressed) body
+         * which is compressed into the cache.
+         *
+         * @return the maximum length of an (uncompressed) body
+         */
+        public int getMaxContentLength() {
+            return maxContentLength;
+        }
+
+        /**
+         * Returns the cached compressed body with the given key, ETag and encoding.
+         *
+         * @param key the resource key
+         * @param etag the resource ETag
+         * @param encoding the content encoding
+         * @return the cached compressed body, or null if there is none
+         */
+        public synchronized byte[] get(String key, String etag, String encoding) {
+            Object[] entry = entries.get(key + '\n' + encoding);
+            return entry != null && entry[0].equals(etag) ? (byte[])entry[1] : null;
+        }
+
+        /**
+         * Adds a compressed body to the cache, replacing the one with the same key
+         * and encoding (if any), and evicting the least recently used ones as necessary.
+         *
+         * @param key the resource key
+         * @param etag the resource ETag
+         * @param encoding the content encoding
+         * @param body the compressed body
+         */
+        public synchronized void put(String key, String etag, String encoding, byte[] body) {
+            Object[] prev = entries.put(key + '\n' + encoding, new Object[] { etag, body });
+            size += body.length - (prev == null ? 0 : ((byte[])prev[1]).length);
+            for (Iterator<Object[]> it = entries.values().iterator(); size > maxSize && it.hasNext(); ) {
+                size -= ((byte[])it.next()[1]).length;
+                it.remove();
+            }
+        }
+
+        /**
+         * Removes all bodies from the cache.
+         */
+        public synchronized void clear() {
+            entries.clear();
+            size = 0;
+        }
+
+        /**
+         * Compresses the given content using the given encoding.
+         *
+         * @param content the content to compress
+         * @param encoding the content encoding ("gzip" or "deflate")
+         * @return the compressed content
+         * @throws IOException if an error occurs
+         */
+        public static byte[] compress(byte[] content, String encoding) throws IOException {
+            return compress(content, encoding, DeflaterPool.getDefault(),
+                Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+        }
+
+        /**
+         * Compresses the given content using the given encoding and settings.
+         *
+         * @param content the content to compress
+         * @param encoding the content encoding ("gzip" or "deflate")
+         * @param pool the pool from which the Deflater is taken
+         * @param level the compression level (0-9 or {@link Deflater#DEFAULT_COMPRESSION})
+         * @param strategy the compression strategy (e.g. {@link Deflater#DEFAULT_STRATEGY})
+         * @return the compressed content
+         * @throws IOException if an error occurs
+         */
+        public static byte[] compress(byte[] content, String encoding, DeflaterPool pool,
+                int level, int strategy) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 4 + 64);
+            OutputStream out = new PooledDeflaterOutputStream(bytes, pool, encoding.equals("gzip"), level, strategy);
+            out.write(content);
+            out.close();
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * The {@code CompressionPolicy} decides whether and how response bodies
+     * are compressed, so that compression can be skipped for small bodies
+     * and downgraded to a faster level or skipped entirely when the server
+     * is under load, rather than making the overload worse.
+     * <p>
+     * By default, only bodies of a {@link HTTPServer#isCompressible compressible}
+     * content type and larger than 300 bytes (or of unknown length) are
+     * compressed, at the configured level, regardless of load. Thresholds
+     * can be set for the body size, executor queue depth and CPU load
+     * above which the fast level is used or compression is skipped,
+     * and each context can limit its own compression mode (see
+     * {@link VirtualHost.ContextInfo#setCompression}).
+     * Subclasses may override the decision methods to apply other rules.
+     */
+    public static class CompressionPolicy {
+
+        /** Mode in which bodies are not compressed. */
+        public static final int IDENTITY = 0;
+        /** Mode in which bodies are compressed using the fastest level. */
+        public static final int FAST = 1;
+        /** Mode in which bodies are compressed using the configured level. */
+        public static final int FULL = 2;
+
+        protected static final Method cpuLoadMethod = getCpuLoadMethod();
+
+        protected volatile long minSize = 300;
+        protected volatile long fastSize;
+        protected volatile int fastQueueDepth;
+        protected volatile int identityQueueDepth;
+        protected volatile double fastCpuLoad;
+        protected volatile double identityCpuLoad;
+        protected volatile double cpuLoad; // cached value
+        protected volatile long cpuLoadTime; // when cached value was sampled
+
+        /**
+         * Sets the body size thresholds.
+         *
+         * @param minSize the body length at or below which bodies are not compressed
+         * @param fastSize the body length above which bodies are compressed using
+         *        the fast level, or 0 for no limit (bodies of unknown length
+         *        are not affected)
+         */
+        public void setSizeThresholds(long minSize, long fastSize) {
+            this.minSize = minSize;
+            this.fastSize = fastSize;
+        }
+
+        /**
+         * Sets the executor queue depth thresholds (see {@link HTTPServer#getQueueDepth}).
+         *
+         * @param fastDepth the queue depth at or above which the fast level is used,
+         *        or 0 for no limit
+         * @param identityDepth the queue depth at or above which bodies are not
+         *        compressed, or 0 for no limit
+         */
+        public void setQueueDepthThresholds(int fastDepth, int identityDepth) {
+            this.fastQueueDepth = fastDepth;
+            this.identityQueueDepth = identityDepth;
+        }
+
+        /**
+         * Sets the CPU load thresholds. The CPU load is that of the whole system if
+         * the JVM supports it, or else the load average per available processor.
+         *
+         * @param fastLoad the CPU load (between 0 and 1) at or above which
+         *        the fast level is used, or 0 for no limit
+         * @param identityLoad the CPU load (between 0 and 1) at or above which
+         *        bodies are not compressed, or 0 for no limit
+         */
+        public void setCpuLoadThresholds(double fastLoad, double identityLoad) {
+            this.fastCpuLoad = fastLoad;
+            this.identityCpuLoad = identityLoad;
+        }
+
+        /**
+         * Returns whether a response body may be compressed at all, regardless
+         * of load. This determines whether a compressed representation is
+         * selected, including one taken from the {@link CompressionCache}.
+         *
+         * @param context the context of the request, or null if unknown
+         * @param contentType the response body content type
+         * @param length the response body length, or negative if unknown
+         * @return whether the response body may be compressed
+         */
+        public boolean isCompressible(VirtualHost.ContextInfo context, String contentType, long length) {
+            return (context == null || context.getCompression() != IDENTITY)
+                && (length < 0 || length > minSize) && HTTPServer.isCompressible(contentType);
+        }
+
+        /**
+         * Selects the compression mode for a response body which is
+         * {@link #isCompressible(VirtualHost.ContextInfo, String, long) compressible}
+         * and will be compressed as it is sent.
+         *
+         * @param context the context of the request, or null if unknown
+         * @param contentType the response body content type
+         * @param length the response body length, or negative if unknown
+         * @param queueDepth the server's current executor queue depth
+         * @return the compression mode ({@link #FULL}, {@link #FAST} or {@link #IDENTITY})
+         */
+        public int select(VirtualHost.ContextInfo context, String contentType, long length, int queueDepth) {
+            int mode = context == null ? FULL : context.getCompression();
+            if (length > fastSize && fastSize > 0)
+                mode = Math.min(mode, FAST);
+            if (queueDepth >= identityQueueDepth && identityQueueDepth > 0)
+                return IDENTITY;
+            if (queueDepth >= fastQueueDepth && fastQueueDepth > 0)
+                mode = Math.min(mode, FAST);
+            if (identityCpuLoad > 0 || fastCpuLoad > 0) {
+                double load = getCpuLoad();
+                if (load >= identityCpuLoad && identityCpuLoad > 0)
+                    return IDENTITY;
+                if (load >= fastCpuLoad && fastCpuLoad > 0)
+                    mode = Math.min(mode, FAST);
+            }
+            return mode;
+        }
+
+        /**
+         * Returns the current CPU load, which is sampled at most once a second.
+         *
+         * @return the current CPU load (between 0 and 1), or 0 if unknown
+         */
+        public double getCpuLoad() {
+            long now = System.currentTimeMillis();
+            if (now - cpuLoadTime >= 1000) {
+                cpuLoadTime = now; // (a concurrent duplicate sample is harmless)
+                java.lang.management.OperatingSystemMXBean os =
+                    java.lang.management.ManagementFactory.getOperatingSystemMXBean();
+                double load = -1;
+                try {
+                    if (cpuLoadMethod != null)
+                        load = (Double)cpuLoadMethod.invoke(os);
+                } catch (Exception ignore) {}
+                if (load < 0) // unsupported - fall back to load average
+                    load = os.getSystemLoadAverage() / os.getAvailableProcessors();
+                cpuLoad = Math.max(0, Math.min(1, load));
+            }
+            return cpuLoad;
+        }
+
+        /**
+         * Returns the {@code com.sun.management.OperatingSystemMXBean.getSystemCpuLoad}
+         * method, if supported by the JVM.
+         *
+         * @return the method, or null if it is not supported
+         */
+        protected static Method getCpuLoadMethod() {
+            try {
+                return Class.forName("com.sun.management.OperatingSystemMXBean").getMethod("getSystemCpuLoad");
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * The {@code MethodContextHandler} services a context
+     * by invoking a handler method on a specified object.
+     * <p>
+     * The method must have the same signature and contract as
+     * {@link ContextHandler#serve}, but can have an arbitrary name.
+     *
+     * @see VirtualHost#addContexts(Object)
+     */
+    public static class MethodContextHandler implements ContextHandler {
+
+        protected static final MethodType SERVE_TYPE =
+            MethodType.methodType(int.class, Request.class, Response.class);
+
+        protected final Method m;
+        protected final Object obj;
+        protected final ContextHandler handler; // generated handler, or null if using the handle
+        protected final MethodHandle handle; // bound method handle, or null if using the handler
+
+        /**
+         * Constructs a MethodContextHandler which invokes the given method.
+         * If the method and its class are public, a {@link ContextHandler}
+         * class which calls it directly is generated once (like a method
+         * reference), so that the JIT compiler can inline the call. Otherwise,
+         * the method is resolved into a method handle bound to the given object.
+         * Either way, invoking it does not require reflection, boxing of the
+         * arguments and result, or unwrapping of exceptions.
+         *
+         * @param m the handler method
+         * @param obj the object on which the method is invoked
+         *        (ignored if the method is static)
+         * @throws IllegalArgumentException if the method has an invalid
+         *         signature or is not accessible
+         */
+        public MethodContextHandler(Method m, Object obj) throws IllegalArgumentException {
+            this.m = m;
+            this.obj = obj;
+            Class<?>[] params = m.getParameterTypes();
+            if (params.length != 2
+                || !Request.class.isAssignableFrom(params[0])
+                || !Response.class.isAssignableFrom(params[1])
+                || !int.class.isAssignableFrom(m.getReturnType()))
+                    throw new IllegalArgumentException("invalid method signature: " + m);
+            handler = createHandler(m, obj);
+            MethodHandle mh = null;
+            if (handler == null) { // fall back to a bound method handle
+                try {
+                    mh = MethodHandles.lookup().unreflect(m);
+                    if (!Modifier.isStatic(m.getModifiers()))
+                        mh = mh.bindTo(obj);
+                    mh = mh.asType(SERVE_TYPE);
+                } catch (IllegalAccessException iae) {
+                    throw new IllegalArgumentException("inaccessible method: " + m, iae);
+                }
+            }
+            handle = mh;
+        }
+
+        /**
+         * Generates a ContextHandler which calls the given method directly,
+         * using the same mechanism as method references.
+         *
+         * @param m the handler method
+         * @param obj the object on which the method is invoked
+         *        (ignored if the method is static)
+         * @return the generated handler, or null if the method cannot be called
+         *         directly from a generated class (e.g. it is not public, its
+         *         class is not public or not visible from this class's loader,
+         *         or its parameter types are not exactly Request and Response)
+         */
+        protected static ContextHandler createHandler(Method m, Object obj) {
+            Class<?> c = m.getDeclaringClass();
+            Class<?>[] params = m.getParameterTypes();
+            if (params[0] != Request.class || params[1] != Response.class)
+                return null;
+            try {
+                // the generated class is defined alongside this class, and calls the method by name
+                if (Class.forName(c.getName(), false, MethodContextHandler.class.getClassLoader()) != c)
+                    return null;
+                // (looked up by name, since unreflecting would honor the method's accessible flag)
+                boolean isStatic = Modifier.isStatic(m.getModifiers());
+                MethodHandle mh = isStatic // fails if the method or class is not public
+                    ? MethodHandles.publicLookup().findStatic(c, m.getName(), SERVE_TYPE)
+                    : MethodHandles.publicLookup().findVirtual(c, m.getName(), SERVE_TYPE);
+                CallSite site = LambdaMetafactory.metafactory(MethodHandles.lookup(), "serve",
+                    isStatic ? MethodType.methodType(ContextHandler.class)
+                        : MethodType.methodType(ContextHandler.class, c),
+                    SERVE_TYPE, mh, SERVE_TYPE);
+                return isStatic ? (ContextHandler)site.getTarget().invoke()
+                    : (ContextHandler)site.getTarget().invoke(obj);
+            } catch (Throwable t) { // e.g. ClassNotFoundException, IllegalAccessException or access error
+                return null;
+            }
+        }
+
+        public int serve(Request req, Response resp) throws IOException {
+            if (handler != null) {
+                try {
+                    return handler.serve(req, resp);
+                } catch (Exception e) { // the method may throw checked exceptions not declared by serve
+                    throw toIOException(e); // preserve the original exception
+                }
+            }
+            try {
+                return (int)handle.invokeExact(req, resp);
+            } catch (Throwable t) {
+                throw toIOException(t); // preserve the original exception
+            }
+        }
+    }
+
+    /**
+     * The {@code Header} class encapsulates a single HTTP header.
+     */
+    public static class Header {
+
+        /**
+         * The well-known header names, in their canonical case. Headers with
+         * these names are indexed by {@link Headers}, so that looking them
+         * up does not require comparing names.
+         */
+        protected static final String[] knownNames = {
+            "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Accept-Ranges",
+            "Allow", "Authorization", "Cache-Control", "Connection", "Content-Disposition",
+            "Content-Encoding", "Content-Length", "Content-Range", "Content-Type", "Cookie",
+            "Date", "ETag", "Expect", "Host", "If-Match", "If-Modified-Since", "If-None-Match",
+            "If-Range", "If-Unmodified-Since", "Keep-Alive", "Last-Modified", "Location",
+            "Range", "Referer", "Retry-After", "Server", "Set-Cookie", "TE", "Trailer",
+            "Transfer-Encoding", "Upgrade", "User-Agent", "Vary", "WWW-Authenticate"
+        };
+
+        // open-addressing hash tables of known name index + 1 (or 0 if empty),
+        // by the names' String hash codes and by their case-folded hash codes
+        protected static final byte[] knownByHash = new byte[128];
+        protected static final byte[] knownByFoldedHash = new byte[128];
+
+        static {
+            for (int i = 0; i < knownNames.length; i++) {
+                int slot = knownNames[i].hashCode() & 127;
+                while (knownByHash[slot] != 0)
+                    slot = (slot + 1) & 127;
+                knownByHash[slot] = (byte)(i + 1);
+                slot = foldedHash(knownNames[i]) & 127;
+                while (knownByFoldedHash[slot] != 0)
+                    slot = (slot + 1) & 127;
+                knownByFoldedHash[slot] = (byte)(i + 1);
+            }
+        }
+
+        protected String name; // decoded lazily if read from a request head
+        protected String value; // decoded lazily if read from a request head
+        protected final byte[] bytes; // the request head, or null if given as strings
+        protected final int nameStart, nameEnd, valueStart, valueEnd; // indices into bytes
+        protected final int known; // the index of the well-known name, or -1 if not well-known
+
+        /**
+         * Constructs a header with the given name and value.
+         * Leading and trailing whitespace are trimmed.
+         *
+         * @param name the header name
+         * @param value the header value
+         * @throws NullPointerException if name or value is null
+         * @throws IllegalArgumentException if name is empty
+         */
+        public Header(String name, String value) {
+            this.name = name.trim();
+            this.value = value.trim();
+            // RFC2616#14.23 - header can have an empty value (e.g. Host)
+            if (this.name.length() == 0) // but name cannot be empty
+                throw new IllegalArgumentException("name cannot be empty");
+            bytes = null;
+            nameStart = nameEnd = valueStart = valueEnd = 0;
+            known = getKnownIndex(this.name);
+        }
+
+        /**
+         * Constructs a header whose name and value are the given ranges
+         * of ISO-8859-1 encoded bytes, which are decoded only when used.
+         * The ranges must already be trimmed, and the name must not be empty.
+         *
+         * @param bytes the bytes containing the header name and value
+         * @param nameStart the index of the name's first byte
+         * @param nameEnd the index following the name's last byte
+         * @param valueStart the index of the value's first byte
+         * @param valueEnd the index following the value's last byte
+         */
+        protected Header(byte[] bytes, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+            this.bytes = bytes;
+            this.nameStart = nameStart;
+            this.nameEnd = nameEnd;
+            this.valueStart = valueStart;
+            this.valueEnd = valueEnd;
+            known = getKnownIndex(bytes, nameStart, nameEnd);
+            if (known >= 0) { // use the canonical name string if it has the same case
+                String canonical = knownNames[known];
+                int i = 0;
+                while (i < canonical.length() && canonical.charAt(i) == bytes[nameStart + i])
+                    i++;
+                if (i == canonical.length())
+                    name = canonical;
+            }
+        }
+
+        /**
+         * Returns the given character in lower case, if it is an ASCII letter.
+         *
+         * @param c a character
+         * @return the character in lower case, if it is an ASCII letter,
+         *         or the unchanged character otherwise
+         */
+        protected static char foldCase(char c) {
+            return c >= 'A' && c <= 'Z' ? (char)(c + 32) : c;
+        }
+
+        /**
+         * Returns a hash code of the given name which is the same
+         * for all names that differ only in the case of ASCII letters.
+         *
+         * @param name a header name
+         * @return the case-folded hash code
+         */
+        protected static int foldedHash(String name) {
+            int h = 0;
+            for (int i = 0, len = name.length(); i < len; i++)
+                h = 31 * h + foldCase(name.charAt(i));
+            return h;
+        }
+
+        /**
+         * Returns the index of the given header name within the well-known names.
+         * Names which are constants (such as string literals) are usually found
+         * by their cached hash code and identity, without any comparison.
+         *
+         * @param name a header name (case insensitive)
+         * @return the index of the given name within the well-known names,
+         *         or -1 if it is not a well-known name
+         */
+        protected static int getKnownIndex(String name) {
+            int h = name.hashCode(); // cached by String
+            for (int slot = h & 127, k; (k = knownByHash[slot]) != 0; slot = (slot + 1) & 127) {
+                String known = knownNames[k - 1];
+                if (known == name || known.hashCode() == h && known.equals(name))
+                    return k - 1;
+            }
+            // not in canonical case - compare case-insensitively
+            h = 0;
+            for (int i = 0, len = name.length(); i < len; i++) {
+                char c = name.charAt(i);
+                if (c > 0x7F) { // rare, but some non-ASCII chars are equal to ASCII ones ignoring case
+                    for (int j = 0; j < knownNames.length; j++)
+                        if (knownNames[j].equalsIgnoreCase(name))
+                            return j;
+                    return -1;
+                }
+                h = 31 * h + foldCase(c);
+            }
+            for (int slot = h & 127, k; (k = knownByFoldedHash[slot]) != 0; slot = (slot + 1) & 127)
+                if (knownNames[k - 1].equalsIgnoreCase(name))
+                    return k - 1;
+            return -1;
+        }
+
+        /**
+         * Returns the index of the given ISO-8859-1 encoded header name
+         * within the well-known names.
+         *
+         * @param bytes the bytes containing the header name
+         * @param start the index of the name's first byte
+         * @param end the index following the name's last byte
+         * @return the index of the given name within the well-known names,
+         *         or -1 if it is not a well-known name
+         */
+        protected static int getKnownIndex(byte[] bytes, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++)
+                h = 31 * h + foldCase((char)(bytes[i] & 0xFF));
+            for (int slot = h & 127, k; (k = knownByFoldedHash[slot]) != 0; slot = (slot + 1) & 127) {
+                String known = knownNames[k - 1]; // ASCII only, so no other chars are equal ignoring case
+                int i = 0;
+                if (known.length() == end - start)
+                    while (i < end - start && foldCase(known.charAt(i)) == foldCase((char)(bytes[start + i] & 0xFF)))
+                        i++;
+                if (i == known.length())
+                    return k - 1;
+            }
+            return -1;
+        }
+
+        /**
+         * Returns this header's name.
+         *
+         * @return this header's name
+         */
+        public String getName() {
+            if (name == null)
+                name = new String(bytes, nameStart, nameEnd - nameStart, StandardCharsets.ISO_8859_1);
+            return name;
+        }
+
+        /**
+         * Returns this header's value.
+         *
+         * @return this header's value
+         */
+        public String getValue() {
+            if (value == null)
+                value = new String(bytes, valueStart, valueEnd - valueStart, StandardCharsets.ISO_8859_1);
+            return value;
+        }
+
+        /**
+         * Returns whether this header has the given name (case insensitive),
+         * without decoding this header's name if it has not been decoded yet.
+         *
+         * @param name a header name
+         * @return whether this header has the given name
+         */
+        public boolean nameEquals(String name) {
+            if (this.name != null)
+                return this.name.equalsIgnoreCase(name);
+            int len = nameEnd - nameStart;
+            if (name.length() != len)
+                return false;
+            for (int i = 0; i < len; i++) {
+                char c1 = (char)(bytes[nameStart + i] & 0xFF);
+                char c2 = name.charAt(i);
+                if (c1 != c2 && Character.toUpperCase(c1) != Character.toUpperCase(c2)
+                        && Character.toLowerCase(c1) != Character.toLowerCase(c2))
+                    return false; // same comparison as String.equalsIgnoreCase
+            }
+            return true;
+        }
+
+        /**
+         * Returns whether this header has the same name (case insensitive)
+         * as the given header, without decoding either of their names
+         * if they have not been decoded yet.
+         *
+         * @param header a header
+         * @return whether this header has the same name as the given header
+         */
+        protected boolean nameEquals(Header header) {
+            if (name != null || header.name != null)
+                return name != null ? header.nameEquals(name) : nameEquals(header.name);
+            int len = nameEnd - nameStart;
+            if (header.nameEnd - header.nameStart != len)
+                return false;
+            for (int i = 0; i < len; i++) {
+                char c1 = (char)(bytes[nameStart + i] & 0xFF);
+                char c2 = (char)(header.bytes[header.nameStart + i] & 0xFF);
+                if (c1 != c2 && Character.toUpperCase(c1) != Character.toUpperCase(c2)
+                        && Character.toLowerCase(c1) != Character.toLowerCase(c2))
+                    return false; // same comparison as String.equalsIgnoreCase
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The {@code Headers} class encapsulates a collection of HTTP headers.
+     * <p>
+     * Header names are treated case-insensitively, although this class retains
+     * their original case. Header insertion order is maintained as well.
+     */
+    public static class Headers implements Iterable<Header> {
+
+        // due to the requirements of case-insensitive name comparisons,
+        // retaining the original case, and retaining header insertion order,
+        // and due to the fact that the number of headers is generally
+        // quite small (usually under 12 headers), we use a simple array with
+        // linear access times, which proves to be more efficient and
+        // straightforward than the alternatives
+        protected Header[] headers = new Header[12];
+        protected int count;
+        // the position + 1 of the first header with each well-known name (or 0 if none),
+        // so that looking them up does not require scanning and comparing names
+        protected final int[] known = new int[Header.knownNames.length];
+
+        /**
+         * Returns the number of added headers.
+         *
+         * @return the number of added headers
+         */
+        public int size() {
+            return count;
+        }
+
+        /**
+         * Returns the value of the first header with the given name.
+         *
+         * @param name the header name (case insensitive)
+         * @return the header value, or null if none exists
+         */
+        public String get(String name) {
+            int k = Header.getKnownIndex(name);
+            if (k >= 0) {
+                int pos = known[k];
+                return pos == 0 ? null : headers[pos - 1].getValue();
+            }
+            for (int i = 0; i < count; i++)
+                if (headers[i].known < 0 && headers[i].nameEquals(name))
+                    return headers[i].getValue();
+            return null;
+        }
+
+        /**
+         * Returns the Date value of the header with the given name.
+         *
+         * @param name the header name (case insensitive)
+         * @return the header value as a Date, or null if none exists
+         *         or if the value is not in any supported date format
+         */
+        public Date getDate(String name) {
+            try {
+                String header = get(name);
+                return header == null ? null : parseDate(header);
+            } catch (IllegalArgumentException iae) {
+                return null;
+            }
+        }
+
+        /**
+         * Returns whether there exists a header with the given name.
+         *
+         * @param name the header name (case insensitive)
+         * @return whether there exists a header with the given name
+         */
+        public boolean contains(String name) {
+            return get(name) != null;
+        }
+
+        /**
+         * Adds a header with the given name and value to the end of this
+         * collection of headers. Leading and trailing whitespace are trimmed.
+         *
+         * @param name the header name (case insensitive)
+         * @param value the header value
+         */
+        public void add(String name, String value) {
+            add(new Header(name, value)); // also validates
+        }
+
+        /**
+         * Adds the given header to the end of this collection of headers.
+         *
+         * @param header the header to add
+         */
+        protected void add(Header header) {
+            // expand array if necessary
+            if (count == headers.length) {
+                Header[] expanded = new Header[2 * count];
+                System.arraycopy(headers, 0, expanded, 0, count);
+                headers = expanded;
+            }
+            if (header.known >= 0 && known[header.known] == 0)
+                known[header.known] = count + 1;
+            headers[count++] = header; // inlining header would cause a bug!
+        }
+
+        /**
+         * Adds all given headers to the end of this collection of headers,
+         * in their original order.
+         *
+         * @param headers the headers to add
+         */
+        public void addAll(Headers headers) {
+            for (Header header : headers)
+                add(header.getName(), header.getValue());
+        }
+
+        /**
+         * Adds a header with the given name and value, replacing the first
+         * existing header with the same name. If there is no existing header
+         * with the same name, it is added as in {@link #add}.
+         *
+         * @param name the header name (case insensitive)
+         * @param value the header value
+         * @return the replaced header, or null if none existed
+         */
+        public Header replace(String name, String value) {
+            return replace(new Header(name, value)); // also validates
+        }
+
+        /**
+         * Adds the given header, replacing the first existing header with
+         * the same name. If there is no existing header with the same name,
+         * it is added as in {@link #add}.
+         *
+         * @param header the header to add
+         * @return the replaced header, or null if none existed
+         */
+        protected Header replace(Header header) {
+            if (header.known >= 0) {
+                int pos = known[header.known];
+                if (pos == 0) {
+                    add(header);
+                    return null;
+                }
+                Header prev = headers[pos - 1];
+                headers[pos - 1] = header;
+                return prev;
+            }
+            for (int i = 0; i < count; i++) {
+                if (headers[i].known < 0 && headers[i].nameEquals(header)) {
+                    Header prev = headers[i];
+                    headers[i] = header;
+                    return prev;
+                }
+            }
+            add(header);
+            return null;
+        }
+
+        /**
+         * Removes all headers with the given name (if any exist).
+         *
+         * @param name the header name (case insensitive)
+         */
+        public void remove(String name) {
+            int j = 0;
+            for (int i = 0; i < count; i++)
+                if (!headers[i].nameEquals(name))
+                    headers[j++] = headers[i];
+            if (count > j) { // rebuild the index of the shifted headers
+                while (count > j)
+                    headers[--count] = null;
+                Arrays.fill(known, 0);
+                for (int i = count - 1; i >= 0; i--)
+                    if (headers[i].known >= 0)
+                        known[headers[i].known] = i + 1;
+            }
+        }
+
+        /**
+         * Writes the headers to the given stream (including trailing CRLF).
+         *
+         * @param out the stream to write the headers to
+         * @throws IOException if an error occurs
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            for (int i = 0; i < count; i++) {
+                out.write(getBytes(headers[i].getName(), ": ", headers[i].getValue()));
+                out.write(CRLF);
+            }
+            out.write(CRLF); // ends header block
+        }
+
+        /**
+         * Returns a header's parameters. Parameter order is maintained,
+         * and the first key (in iteration order) is the header's value
+         * without the parameters.
+         *
+         * @param name the header name (case insensitive)
+         * @return the header's parameter names and values
+         */
+        public Map<String, String> getParams(String name) {
+            Map<String, String> params = new LinkedHashMap<String, String>();
+            for (String param : split(get(name), ";", -1)) {
+                String[] pair = split(param, "=", 2);
+                String val = pair.length == 1 ? "" : trimLeft(trimRight(pair[1], '"'), '"');
+                params.put(pair[0], val);
+            }
+            return params;
+        }
+
+        /**
+         * Returns an iterator over the headers, in their insertion order.
+         * If the headers collection is modified during iteration, the
+         * iteration result is undefined. The remove operation is unsupported.
+         *
+         * @return an Iterator over the headers
+         */
+        public Iterator<Header> iterator() {
+            // we use the built-in wrapper instead of a trivial custom implementation
+            // since even a tiny anonymous class here compiles to a 1.5K class file
+            return Arrays.asList(headers).subList(0, count).iterator();
+        }
+    }
+
+    /**
+     * The {@code Request} class encapsulates a single HTTP request.
+     */
+    public class Request {
+
+        protected String method;
+        protected URI uri;
+        protected URL baseURL; // cached value
+        protected String version;
+        protected Headers headers;
+        protected InputStream body;
+        protected Map<String, String> params; // cached value
+        protected VirtualHost host; // cached value
+        protected VirtualHost.ContextInfo context; // cached value
+        protected CompletionStage<Integer> pending; // asynchronous handler result
+        protected int asyncTimeout = -1; // or negative to use the context's timeout
+
+        /**
+         * Constructs a Request from the data in the given input stream.
+         *
+         * @param in the input stream from which the request is read
+         * @throws IOException if an error occurs
+         */
+        public Request(InputStream in) throws IOException {
+            readRequestLine(in);
+            headers = readHeaders(in);
+            // RFC2616#3.6 - if "chunked" is used, it must be the last one
+            // RFC2616#4.4 - if non-identity Transfer-Encoding is present,
+            // it must either include "chunked" or close the connection after
+            // the body, and in any case ignore Content-Length.
+            // if there is no such Transfer-Encoding, use Content-Length
+            // if neither header exists, there is no body
+            String header = headers.get("Transfer-Encoding");
+            if (header != null && !header.toLowerCase(Locale.US).equals("identity")) {
+                if (Arrays.asList(splitElements(header, true)).contains("chunked"))
+                    body = new ChunkedInputStream(in, headers);
+                else
+                    body = in; // body ends when connection closes
+            } else {
+                header = headers.get("Content-Length");
+                long len = header == null ? 0 : parseULong(header, 10);
+                body = new LimitedInputStream(in, len, false);
+            }
+        }
+
+        /**
+         * Returns the request method.
+         *
+         * @return the request method
+         */
+        public String getMethod() { return method; }
+
+        /**
+         * Returns the request URI.
+         *
+         * @return the request URI
+         */
+        public URI getURI() { return uri; }
+
+        /**
+         * Returns the request version string.
+         *
+         * @return the request version string
+         */
+        public String getVersion() { return version; }
+
+        /**
+         * Returns the request headers.
+         *
+         * @return the request headers
+         */
+        public Headers getHeaders() { return headers; }
+
+        /**
+         * Returns the input stream containing the request body.
+         *
+         * @return the input stream containing the request body
+         */
+        public InputStream getBody() { return body; }
+
+        /**
+         * Returns the path component of the request URI, after
+         * URL decoding has been applied (using the UTF-8 charset).
+         *
+         * @return the decoded path component of the request URI
+         */
+        public String getPath() {
+            return uri.getPath();
+        }
+
+        /**
+         * Sets the path component of the request URI. This can be useful
+         * in URL rewriting, etc.
+         *
+         * @param path the path to set
+         * @throws IllegalArgumentException if the given path is malformed
+         */
+        public void setPath(String path) {
+            try {
+                uri = new URI(uri.getScheme(), uri.getUserInfo(), uri.getHost(), uri.getPort(),
+                    trimDuplicates(path, '/'), uri.getQuery(), uri.getFragment());
+                context = null; // clear cached context so it will be recalculated
+            } catch (URISyntaxException use) {
+                throw new IllegalArgumentException("error setting path", use);
+            }
+        }
+
+        /**
+         * Returns the base URL (scheme, host and port) of the request resource.
+         * The host name is taken from the request URI or the Host header or a
+         * default host (see RFC2616#5.2).
+         *
+         * @return the base URL of the requested resource, or null if it
+         *         is malformed
+         */
+        public URL getBaseURL() {
+            if (baseURL != null)
+                return baseURL;
+            // normalize host header
+            String host = uri.getHost();
+            if (host == null) {
+                host = headers.get("Host");
+                if (host == null) // missing in HTTP/1.0
+                    host = detectLocalHostName();
+            }
+            int pos = host.indexOf(':');
+            host = pos < 0 ? host : host.substring(0, pos);
+            try {
+                return baseURL = new URL(secure ? "https" : "http", host, port, "");
+            } catch (MalformedURLException mue) {
+                return null;
+            }
+        }
+
+        /**
+         * Returns the request parameters, which are parsed both from the query
+         * part of the request URI, and from the request body if its content
+         * type is "application/x-www-form-urlencoded" (i.e. a submitted form).
+         * UTF-8 encoding is assumed in both cases.
+         * <p>
+         * The parameters are returned as a list of string arrays, each containing
+         * the parameter name as the first element and its corresponding value
+         * as the second element (or an empty string if there is no value).
+         * <p>
+         * The list retains the original order of the parameters.
+         *
+         * @return the request parameters name-value pairs,
+         *         or an empty list if there are none
+         * @throws IOException if an error occurs
+         * @see HTTPServer#parseParamsList(String)
+         */
+        public List<String[]> getParamsList() throws IOException {
+            List<String[]> queryParams = parseParamsList(uri.getRawQuery());
+            List<String[]> bodyParams = Collections.emptyList();
+            String ct = headers.get("Content-Type");
+            if (ct != null && ct.toLowerCase(Locale.US).startsWith("application/x-www-form-urlencoded"))
+                bodyParams = parseParamsList(readToken(body, -1, "UTF-8", 2097152)); // 2MB limit
+            if (bodyParams.isEmpty())
+                return queryParams;
+            if (queryParams.isEmpty())
+                return bodyParams;
+            queryParams.addAll(bodyParams);
+            return queryParams;
+        }
+
+        /**
+         * Returns the request parameters, which are parsed both from the query
+         * part of the request URI, and from the request body if its content
+         * type is "application/x-www-form-urlencoded" (i.e. a submitted form).
+         * UTF-8 encoding is assumed in both cases.
+         * <p>
+         * For multivalued parameters (i.e. multiple parameters with the same
+         * name), only the first one is considered. For access to all values,
+         * use {@link #getParamsList()} instead.
+         * <p>
+         * The map iteration retains the original order of the parameters.
+         *
+         * @return the request parameters name-value pairs,
+         *         or an empty map if there are none
+         * @throws IOException if an error occurs
+         * @see #getParamsList()
+         */
+        public Map<String, String> getParams() throws IOException {
+            if (params == null)
+                params = toMap(getParamsList());
+            return params;
+        }
+
+        /**
+         * Returns the absolute (zero-based) content range value read
+         * from the Range header. If multiple ranges are requested, a single
+         * range containing all of them is returned.
+         *
+         * @param length the full length of the requested resource
+         * @return the requested range, or null if the Range header
+         *         is missing or invalid
+         */
+        public long[] getRange(long length) {
+            String header = headers.get("Range");
+            return header == null || !header.startsWith("bytes=")
+                ? null : parseRange(header.substring(6), length);
+        }
+
+        /**
+         * Reads the request line, parsing the method, URI and version string.
+         *
+         * @param in the input stream from which the request line is read
+         * @throws IOException if an error occurs or the request line is invalid
+         */
+        protected void readRequestLine(InputStream in) throws IOException {
+            // RFC2616#4.1: should accept empty lines before request line
+            // RFC2616#19.3: tolerate additional whitespace between tokens
+            String line;
+            try {
+                do { line = readLine(in); } while (line.length() == 0);
+            } catch (IOException ioe) { // if EOF, timeout etc.
+                throw new IOException("missing request line"); // signal that the request did not begin
+            }
+            String[] tokens = split(line, " ", -1);
+            if (tokens.length != 3)
+                throw new IOException("invalid request line: \"" + line + "\"");
+            try {
+                method = tokens[0];
+                // must remove '//' prefix which constructor parses as host name
+                uri = new URI(trimDuplicates(tokens[1], '/'));
+                version = tokens[2]; // RFC2616#2.1: allow implied LWS; RFC7230#3.1.1: disallow it
+            } catch (URISyntaxException use) {
+                throw new IOException("invalid URI: " + use.getMessage());
+            }
+        }
+
+        /**
+         * Returns the virtual host corresponding to the requested host name,
+         * or the default host if none exists.
+         *
+         * @return the virtual host corresponding to the requested host name,
+         *         or the default virtual host
+         */
+        public VirtualHost getVirtualHost() {
+            return host != null ? host
+                : (host = HTTPServer.this.getVirtualHost(getBaseURL().getHost())) != null ? host
+                : (host = HTTPServer.this.getVirtualHost(null));
+        }
+
+        /**
+         * Returns the info of the context handling this request.
+         *
+         * @return the info of the context handling this request, or an empty context
+         */
+        public VirtualHost.ContextInfo getContext() {
+            return context != null ? context : (context = getVirtualHost().getContext(getPath()));
+        }
+
+        /**
+         * Sets the timeout for this request's {@link AsyncContextHandler asynchronous
+         * handler}, overriding its {@link VirtualHost.ContextInfo#setAsyncTimeout
+         * context's} and the server's timeouts. It takes effect only if set by
+         * the handler before it returns its result.
+         *
+         * @param timeout the timeout in milliseconds, 0 for no timeout,
+         *        or negative to use the context's timeout
+         */
+        public void setAsyncTimeout(int timeout) {
+            this.asyncTimeout = timeout;
+        }
+    }
+
+    /**
+     * The {@code Response} class encapsulates a single HTTP response.
+     */
+    public class Response implements Closeable {
+
+        protected OutputStream out; // the underlying output stream
+        protected OutputStream[] encoders = new OutputStream[4]; // chained encoder streams
+        protected Headers headers;
+        protected boolean discardBody;
+        protected int state; // nothing sent, headers sent, or closed
+        protected Request req; // request used in determining client capabilities
+        protected boolean fastCompression; // whether to compress using the fastest level
+
+        /**
+         * Constructs a Response whose output is written to the given stream.
+         *
+         * @param out the stream to which the response is written
+         */
+        public Response(OutputStream out) {
+            this.out = out;
+            this.headers = new Headers();
+        }
+
+        /**
+         * Sets whether this response's body is discarded or sent.
+         *
+         * @param discardBody specifies whether the body is discarded or not
+         */
+        public void setDiscardBody(boolean discardBody) {
+            this.discardBody = discardBody;
+        }
+
+        /**
+         * Sets the request which is used in determining the capabilities
+         * supported by the client (e.g. compression, encoding, etc.)
+         *
+         * @param req the request
+         */
+        public void setClientCapabilities(Request req) { this.req = req; }
+
+        /**
+         * Returns the request headers collection.
+         *
+         * @return the request headers collection
+         */
+        public Headers getHeaders() { return headers; }
+
+        /**
+         * Returns the underlying output stream to which the response is written.
+         * Except for special cases, you should use {@link #getBody()} instead.
+         *
+         * @return the underlying output stream to which the response is written
+         */
+        public OutputStream getOutputStream() { return out; }
+
+        /**
+         * Fences this response if it was given to an asynchronous handler, so that
+         * all further writes to it, including via previously returned streams, fail.
+         * If the handler already wrote anything, the headers are considered sent
+         * (even if only partially), so that no other response follows it.
+         *
+         * @return the underlying connection stream, which remains usable
+         * @see FenceOutputStream
+         */
+        protected OutputStream fence() {
+            if (!(out instanceof FenceOutputStream))
+                return out;
+            FenceOutputStream fenced = (FenceOutputStream)out;
+            if (fenced.fence() && state == 0)
+                state = 1;
+            return fenced.getOutputStream();
+        }
+
+        /**
+         * Returns whether the response headers were already sent.
+         *
+         * @return whether the response headers were already sent
+         */
+        public boolean headersSent() { return state == 1; }
+
+        /**
+         * Returns an output stream into which the response body can be written.
+         * The stream applies encodings (e.g. compression) according to the sent headers.
+         * This method must be called after response headers have been sent
+         * that indicate there is a body. Normally, the content should be
+         * prepared (not sent) even before the headers are sent, so that any
+         * errors during processing can be caught and a proper error response returned -
+         * after the headers are sent, it's too late to change the status into an error.
+         *
+         * @return an output stream into which the response body can be written,
+         *         or null if the body should not be written (e.g. it is discarded)
+         * @throws IOException if an error occurs
+         */
+        public OutputStream getBody() throws IOException {
+            if (encoders[0] != null || discardBody)
+                return encoders[0]; // return the existing stream (or null)
+            // set up chain of encoding streams according to headers
+            List<String> te = Arrays.asList(splitElements(headers.get("Transfer-Encoding"), true));
+            // content of known length is already encoded (e.g. precompressed), since we
+            // only apply content encodings to data of unknown (compressed) length
+            List<String> ce = headers.contains("Content-Length") ? Collections.<String>emptyList()
+                : Arrays.asList(splitElements(headers.get("Content-Encoding"), true));
+            int i = encoders.length - 1;
+            encoders[i] = new FilterOutputStream(out) {
+                @Override
+                public void close() {} // keep underlying connection stream open for now
+                @Override // override the very inefficient default implementation
+                public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); }
+            };
+            if (te.contains("chunked"))
+                encoders[--i] = new ChunkedOutputStream(encoders[i + 1], chunkBufferSize);
+            boolean gzip = ce.contains("gzip") || te.contains("gzip");
+            if (gzip || ce.contains("deflate") || te.contains("deflate")) {
+                int[] params = getCompressionParams(headers.get("Content-Type"));
+                int level = fastCompression && (params[0] < 0 || params[0] > Deflater.BEST_SPEED)
+                    ? Deflater.BEST_SPEED : params[0];
+                Executor executor = compressionExecutor;
+                encoders[--i] = executor != null
+                    ? new ParallelDeflaterOutputStream(encoders[i + 1], deflaterPool, executor,
+                        gzip, level, params[1], compressionBlockSize, compressionParallelism)
+                    : new PooledDeflaterOutputStream(encoders[i + 1], deflaterPool, gzip, level, params[1]);
+            }
+            encoders[0] = encoders[i];
+            encoders[i] = null; // prevent duplicate reference
+            return encoders[0]; // returned stream is always first
+        }
+
+        /**
+         * Closes this response and flushes all output.
+         *
+         * @throws IOException if an error occurs
+         */
+        public void close() throws IOException {
+            close(true);
+        }
+
+        /**
+         * Closes this response, optionally without flushing the underlying
+         * stream, e.g. so that it can be flushed along with subsequent responses.
+         *
+         * @param flush whether to flush the underlying stream
+         * @throws IOException if an error occurs
+         */
+        protected void close(boolean flush) throws IOException {
+            state = -1; // closed
+            if (encoders[0] != null)
+                encoders[0].close(); // close all chained streams (except the underlying one)
+            if (flush)
+                out.flush(); // flush underlying stream (even if getBody was never called)
+        }
+
+        /**
+         * Sends the response headers with the given response status.
+         * A Date header is added if it does not already exist.
+         * If the response has a body, the Content-Length/Transfer-Encoding
+         * and Content-Type headers must be set before sending the headers.
+         *
+         * @param status the response status
+         * @throws IOException if an error occurs or headers were already sent
+         * @see #sendHeaders(int, long, long, String, String, long[])
+         */
+        public void sendHeaders(int status) throws IOException {
+            if (headersSent())
+                throw new IOException("headers were already sent");
+            out.write(getStatusLine(status));
+            if (!headers.contains("Date"))
+                out.write(getDateLine());
+            out.write(serverLine);
+            headers.writeTo(out);
+            state = 1; // headers sent
+        }
+
+        /**
+         * Sends the response headers, including the given response status
+         * and description, and all response headers. If they do not already
+         * exist, the following headers are added as necessary:
+         * Content-Range, Content-Type, Transfer-Encoding, Content-Encoding,
+         * Content-Length, Last-Modified, ETag, Connection  and Date. Ranges are
+         * properly calculated as well, with a 200 status changed to a 206 status.
+         *
+         * @param status the response status
+         * @param length the response body length, or zero if there is no body,
+         *        or negative if there is a body but its length is not yet known
+         * @param lastModified the last modified date of the response resource,
+         *        or non-positive if unknown. A time in the future will be
+         *        replaced with the current system time.
+         * @param etag the ETag of the response resource, or null if unknown
+         *        (see RFC2616#3.11)
+         * @param contentType the content type of the response resource, or null
+         *        if unknown (in which case "application/octet-stream" will be sent)
+         * @param range the content range that will be sent, or null if the
+         *        entire resource will be sent
+         * @throws IOException if an error occurs
+         */
+        public void sendHeaders(int status, long length, long lastModified,
+                String etag, String contentType, long[] range) throws IOException {
+            if (range != null) {
+                headers.add("Content-Range", "bytes " + range[0] + "-" +
+                    range[1] + "/" + (length >= 0 ? length : "*"));
+                length = range[1] - range[0] + 1;
+                if (status == 200)
+                    status = 206;
+            }
+            String ct = headers.get("Content-Type");
+            if (ct == null) {
+                ct = contentType != null ? contentType : "application/octet-stream";
+                headers.add("Content-Type", ct);
+            }
+            if (!headers.contains("Content-Length") && !headers.contains("Transfer-Encoding")) {
+                // RFC2616#3.6: transfer encodings are case-insensitive and must not be sent to an HTTP/1.0 client
+                boolean modern = req != null && req.getVersion().endsWith("1.1");
+                String compression = getCompression(ct, length);
+                if (compression != null && modern) { // select mode for compressing while sending
+                    int mode = compressionPolicy.select(req.getContext(), ct, length, getQueueDepth());
+                    compression = mode == CompressionPolicy.IDENTITY ? null : compression;
+                    fastCompression = mode == CompressionPolicy.FAST;
+                }
+                if (compression != null && modern) {
+                    headers.add("Transfer-Encoding", "chunked"); // compressed data is always unknown length
+                    headers.add("Content-Encoding", compression);
+                } else if (length < 0 && modern) {
+                    headers.add("Transfer-Encoding", "chunked"); // unknown length
+                } else if (length >= 0) {
+                    headers.add("Content-Length", Long.toString(length)); // known length
+                }
+            }
+            if (!headers.contains("Vary")) // RFC7231#7.1.4: Vary field should include headers
+                headers.add("Vary", "Accept-Encoding"); // that are used in selecting representation
+            if (lastModified > 0 && !headers.contains("Last-Modified")) // RFC2616#14.29
+                headers.add("Last-Modified", formatDate(Math.min(lastModified, System.currentTimeMillis())));
+            if (etag != null && !headers.contains("ETag"))
+                headers.add("ETag", etag);
+            if (req != null && "close".equalsIgnoreCase(req.getHeaders().get("Connection"))
+                    && !headers.contains("Connection"))
+                headers.add("Connection", "close"); // #RFC7230#6.6: should reply to close with close
+            sendHeaders(status);
+        }
+
+        /**
+         * Returns the content encoding (compression) that should be applied
+         * to a response body with the given content type and length,
+         * according to the client capabilities.
+         *
+         * @param contentType the response body content type
+         * @param length the response body length, or negative if unknown
+         * @return the content encoding ("gzip" or "deflate"),
+         *         or null if the body should not be compressed
+         */
+        protected String getCompression(String contentType, long length) {
+            if (headers.contains("Content-Encoding"))
+                return null; // content is already encoded (e.g. precompressed)
+            String accepted = req == null ? null : req.getHeaders().get("Accept-Encoding");
+            List<String> encodings = Arrays.asList(splitElements(accepted, true));
+            String compression = encodings.contains("gzip") ? "gzip" :
+                                 encodings.contains("deflate") ? "deflate" : null;
+            return compression != null
+                && compressionPolicy.isCompressible(req.getContext(), contentType, length) ? compression : null;
+        }
+
+        /**
+         * Returns whether a response body with the given content type and
+         * length would be compressed using the {@link #setCompressionCache
+         * compression cache}, if sent using {@link #send(int, byte[], long,
+         * String, String, long[], String)} with a cache key.
+         *
+         * @param contentType the response body content type
+         * @param length the response body length
+         * @return whether the body would be compressed using the compression cache
+         */
+        public boolean isCompressionCached(String contentType, long length) {
+            CompressionCache cache = compressionCache;
+            return cache != null && length <= cache.getMaxContentLength()
+                && getCompression(contentType, length) != null;
+        }
+
+        /**
+         * Returns the encoding with which a response body would be compressed
+         * using the {@link #setCompressionCache compression cache}.
+         *
+         * @param contentType the content type of the response resource, or null if unknown
+         * @param length the response body length
+         * @return the encoding, or null if the body would not be compressed using the cache
+         */
+        protected String getCachedEncoding(String contentType, long length) {
+            String ct = headers.get("Content-Type");
+            ct = ct != null ? ct : contentType != null ? contentType : "application/octet-stream";
+            return isCompressionCached(ct, length) ? getCompression(ct, length) : null;
+        }
+
+        /**
+         * Sends the full response with the given status and the compressed body
+         * taken from the {@link #setCompressionCache compression cache}, if it is
+         * there, so that the (unencoded) content need not even be read. Otherwise,
+         * nothing is sent, and the content should be sent using {@link #send(int,
+         * byte[], long, String, String, long[], String)}, which adds it to the cache.
+         *
+         * @param status the response status
+         * @param length the (unencoded) response body length
+         * @param lastModified the last modified date of the response resource,
+         *        or non-positive if unknown
+         * @param etag the ETag of the response resource
+         * @param contentType the content type of the response resource, or null if unknown
+         * @param key the key identifying the resource in the compression cache
+         * @return true if the response was sent, or false if the cached body was not found
+         * @throws IOException if an error occurs
+         */
+        public boolean sendCached(int status, long length, long lastModified, String etag,
+                String contentType, String key) throws IOException {
+            String encoding = getCachedEncoding(contentType, length);
+            byte[] compressed = encoding == null ? null : compressionCache.get(key, etag, encoding);
+            if (compressed == null)
+                return false;
+            headers.add("Content-Encoding", encoding); // with known length
+            sendHeaders(status, compressed.length, lastModified, etag, contentType, null);
+            OutputStream out = getBody();
+            if (out != null)
+                out.write(compressed);
+            return true;
+        }
+
+        /**
+         * Sends the full response with the given status, and the given string
+         * as the body. The text is sent in the UTF-8 charset. If a
+         * Content-Type header was not explicitly set, it will be set to
+         * text/html, and so the text must contain valid (and properly
+         * {@link HTTPServer#escapeHTML escaped}) HTML.
+         *
+         * @param status the response status
+         * @param text the text body (sent as text/html)
+         * @throws IOException if an error occurs
+         */
+        public void send(int status, String text) throws IOException {
+            byte[] content = text.getBytes("UTF-8");
+            send(status, content, -1, "W/\"" + Integer.toHexString(text.hashCode()) + "\"",
+                "text/html; charset=utf-8", null, null);
+        }
+
+        /**
+         * Sends the full response with the given status and body content.
+         * <p>
+         * If a cache key is given, the body is compressible, the client accepts
+         * compression, and a {@link #setCompressionCache compression cache} is set,
+         * the compressed body is taken from the cache (or compressed and added to
+         * it), and is sent with a known Content-Length rather than being
+         * compressed again on the fly. Cached bodies are identified by the given key,
+         * ETag and encoding, so the key and ETag must together uniquely identify the
+         * content (e.g. the resource path and modification time).
+         *
+         * @param status the response status
+         * @param content the (unencoded) response body content
+         * @param lastModified the last modified date of the response resource,
+         *        or non-positive if unknown
+         * @param etag the ETag of the response resource, or null if unknown
+         * @param contentType the content type of the response resource, or null if unknown
+         * @param range the content range that will be sent, or null if the
+         *        entire resource will be sent
+         * @param key the key identifying the resource in the compression cache,
+         *        or null if the compressed body should not be cached
+         * @throws IOException if an error occurs
+         * @see #sendHeaders(int, long, long, String, String, long[])
+         */
+        public void send(int status, byte[] content, long lastModified, String etag,
+                String contentType, long[] range, String key) throws IOException {
+            int off = 0;
+            int len = content.length;
+            if (key != null && etag != null && range == null) {
+                CompressionCache cache = compressionCache;
+                String encoding = getCachedEncoding(contentType, len);
+                if (encoding != null) {
+                    byte[] compressed = cache.get(key, etag, encoding);
+                    if (compressed == null) {
+                        String ct = headers.get("Content-Type");
+                        int[] params = getCompressionParams(ct != null ? ct : contentType);
+                        compressed = CompressionCache.compress(content, encoding,
+                            deflaterPool, params[0], params[1]);
+                        cache.put(key, etag, encoding, compressed);
+                    }
+                    headers.add("Content-Encoding", encoding); // with known length
+                    content = compressed;
+                    len = compressed.length;
+                }
+            } else if (range != null) {
+                off = (int)range[0];
+                len = (int)(range[1] - off + 1);
+            }
+            sendHeaders(status, content.length, lastModified, etag, contentType, range);
+            OutputStream out = getBody();
+            if (out != null)
+                out.write(content, off, len);
+        }
+
+        /**
+         * Sends an error response with the given status and detailed message.
+         * An HTML body is created containing the status and its description,
+         * as well as the message, which is escaped using the
+         * {@link HTTPServer#escapeHTML escape} method.
+         *
+         * @param status the response status
+         * @param text the text body (sent as text/html)
+         * @throws IOException if an error occurs
+         */
+        public void sendError(int status, String text) throws IOException {
+            send(status, String.format(
+                "<!DOCTYPE html>%n<html>%n<head><title>%d %s</title></head>%n" +
+                "<body><h1>%d %s</h1>%n<p>%s</p>%n</body></html>",
+                status, statuses[status], status, statuses[status], escapeHTML(text)));
+        }
+
+        /**
+         * Sends an error response with the given status and default body.
+         *
+         * @param status the response status
+         * @throws IOException if an error occurs
+         */
+        public void sendError(int status) throws IOException {
+            String text = status < 400 ? ":)" : "sorry it didn't work out :(";
+            sendError(status, text);
+        }
+
+        /**
+         * Sends the response body. This method must be called only after the
+         * response headers have been sent (and indicate that there is a body).
+         * <p>
+         * If the body is a file stream, and no encodings are applied to the
+         * response body, the file content is transferred directly to the
+         * underlying channel (if there is one), without being copied
+         * through user space.
+         *
+         * @param body a stream containing the response body
+         * @param length the full length of the response body, or -1 for the whole stream
+         * @param range the sub-range within the response body that should be
+         *        sent, or null if the entire body should be sent
+         * @throws IOException if an error occurs
+         */
+        public void sendBody(InputStream body, long length, long[] range) throws IOException {
+            OutputStream out = getBody();
+            // the last encoder is cleared if there are no encodings (the base stream is first)
+            if (out != null && body instanceof FileInputStream && this.out instanceof ChannelOutputStream
+                    && encoders[encoders.length - 1] == null) {
+                FileChannel fc = ((FileInputStream)body).getChannel();
+                long position = fc.position() + (range == null ? 0 : range[0]);
+                length = range != null ? range[1] - range[0] + 1 : length < 0 ? fc.size() - position : length;
+                ((ChannelOutputStream)this.out).transferFrom(fc, position, length);
+                fc.position(position + length);
+            } else if (out != null) {
+                if (range != null) {
+                    long offset = range[0];
+                    length = range[1] - range[0] + 1;
+                    while (offset > 0) {
+                        long skip = body.skip(offset);
+                        if (skip == 0)
+                            throw new IOException("can't skip to " + range[0]);
+                        offset -= skip;
+                    }
+                }
+                transfer(body, out, length);
+            }
+        }
+
+        /**
+         * Sends a 301 or 302 response, redirecting the client to the given URL.
+         *
+         * @param url the absolute URL to which the client is redirected
+         * @param permanent specifies whether a permanent (301) or
+         *        temporary (302) redirect status is sent
+         * @throws IOException if an IO error occurs or url is malformed
+         */
+        public void redirect(String url, boolean permanent) throws IOException {
+            try {
+                url = new URI(url).toASCIIString();
+            } catch (URISyntaxException e) {
+                throw new IOException("malformed URL: " + url);
+            }
+            headers.add("Location", url);
+            // some user-agents expect a body, so we send it
+            if (permanent)
+                sendError(301, "Permanently moved to " + url);
+            else
+                sendError(302, "Temporarily moved to " + url);
+        }
+    }
 
     /**
-     * The {@code Response} class encapsulates a single HTTP response.
+     * The {@code AcceptorThread} is the base class of the threads which accept
+     * connections on a server socket, and keeps their accept metrics.
      */
-    public class Response implements Closeable {
+    protected abstract class AcceptorThread extends Thread {
 
-        protected OutputStream out; // the underlying output stream
-        protected OutputStream[] encoders = new OutputStream[4]; // chained encoder streams
-        protected Headers headers;
-        protected boolean discardBody;
-        protected int state; // nothing sent, headers sent, or closed
-        protected Request req; // request used in determining client capabilities
+        protected final ServerSocket serv; // may be shared with other acceptors
+        protected final int index;
+        protected volatile long accepted; // total count (written only by this thread)
+        protected volatile long second; // the current second
+        protected volatile long secondCount; // the count during the current second
+        protected volatile long prevSecondCount; // the count during the previous second
+
+        /**
+         * Constructs an AcceptorThread.
+         *
+         * @param serv the server socket on which connections are accepted
+         * @param index the index of this acceptor among the server's acceptors
+         */
+        protected AcceptorThread(ServerSocket serv, int index) {
+            this.serv = serv;
+            this.index = index;
+        }
+
+        /**
+         * Sets this thread's name according to its class, port and index.
+         */
+        protected void setName() {
+            setName(getClass().getSimpleName() + "-" + port + (index > 0 ? "-" + index : ""));
+        }
+
+        /**
+         * Updates the metrics when a connection is accepted.
+         * This method is called only by this thread.
+         */
+        protected void countAccept() {
+            long now = System.currentTimeMillis() / 1000;
+            if (now != second) {
+                prevSecondCount = now == second + 1 ? secondCount : 0;
+                secondCount = 0;
+                second = now;
+            }
+            secondCount++;
+            accepted++;
+        }
+
+        /**
+         * Returns the total number of connections accepted by this thread.
+         *
+         * @return the total number of accepted connections
+         */
+        public long getAcceptCount() {
+            return accepted;
+        }
+
+        /**
+         * Returns the number of connections accepted by this thread
+         * during the previous (whole) second.
+         *
+         * @return the number of connections accepted during the previous second
+         */
+        public long getAcceptRate() {
+            long now = System.currentTimeMillis() / 1000;
+            long sec = second;
+            return sec == now ? prevSecondCount : sec == now - 1 ? secondCount : 0;
+        }
+    }
+
+    /**
+     * The {@code SocketHandlerThread} handles accepted sockets.
+     */
+    protected class SocketHandlerThread extends AcceptorThread {
+
+        /**
+         * Constructs a SocketHandlerThread which accepts connections
+         * from the given server socket.
+         *
+         * @param serv the server socket
+         * @param index the index of this acceptor among the server's acceptors
+         */
+        public SocketHandlerThread(ServerSocket serv, int index) {
+            super(serv, index);
+        }
+
+        @Override
+        public void run() {
+            setName();
+            try {
+                while (!serv.isClosed()) {
+                    final Socket sock = serv.accept();
+                    countAccept();
+                    try {
+                        executor.execute(new Runnable() {
+                            public void run() {
+                                try {
+                                    try {
+                                        sock.setSoTimeout(socketTimeout);
+                                        sock.setTcpNoDelay(true); // we buffer anyway, so improve latency
+                                        if (sock instanceof SSLSocket)
+                                            handshake((SSLSocket)sock);
+                                        // write plain sockets via their channel to allow zero-copy transfers
+                                        SocketChannel channel = sock.getChannel();
+                                        BufferPool pool = bufferPool;
+                                        ByteBuffer buf = channel == null ? null : pool.get();
+                                        OutputStream out = channel == null
+                                            ? sock.getOutputStream() : new ChannelOutputStream(channel, buf);
+                                        try {
+                                            handleConnection(sock.getInputStream(), out);
+                                        } finally {
+                                            release(pool, out, buf);
+                                        }
+                                    } finally {
+                                        try {
+                                            // RFC7230#6.6 - close socket gracefully
+                                            // (except SSL socket which doesn't support half-closing)
+                                            if (!(sock instanceof SSLSocket)) {
+                                                sock.shutdownOutput(); // half-close socket (only output)
+                                                transfer(sock.getInputStream(), null, -1); // consume input
+                                            }
+                                        } finally {
+                                            sock.close(); // and finally close socket fully
+                                        }
+                                    }
+                                } catch (IOException ignore) {}
+                            }
+                        });
+                    } catch (RejectedExecutionException ree) {
+                        reject(sock); // overloaded
+                    }
+                }
+            } catch (IOException ignore) {}
+        }
+    }
+
+    /**
+     * The {@code ChannelConnection} class holds the state of a single connection
+     * that is handled by a {@link SelectorThread}.
+     * <p>
+     * While the connection is idle, the selector thread reads incoming data into
+     * the connection buffer. Once a complete request head has arrived (or the
+     * buffer is full), the connection is dispatched to the executor, which handles
+     * its transactions using the regular blocking streams API. Whenever the
+     * channel is not ready for reading or writing during the transaction, the
+     * handling thread waits until the selector signals that it is. When no more
+     * requests are pending, the connection is returned to the selector, so that
+     * idle (keep-alive) connections do not occupy any thread.
+     */
+    protected class ChannelConnection implements ByteChannel, Runnable {
+
+        protected final SocketChannel channel;
+        protected final TLSChannel tls; // TLS layer over the channel, or null if plain
+        protected final SelectorThread selector;
+        protected final BufferPool pool;
+        protected final ByteBuffer buf; // incoming data, in read mode
+        protected final InputStream in;
+        protected final OutputStream out;
+        protected boolean closed; // whether the buffers were released (guarded by lock)
+        protected final ReentrantLock lock = new ReentrantLock();
+        protected final Condition readyCondition = lock.newCondition();
+        protected SelectionKey key;
+        protected volatile boolean dispatched; // whether a thread is handling the connection
+        protected boolean ready; // whether the awaited channel operation is ready (guarded by lock)
+        protected long lastActive; // last time data was received while idle
+        protected Request suspendedReq; // transaction to suspend (used by handling thread only)
+        protected Response suspendedResp;
+        protected final AtomicReference<Request> pending = new AtomicReference<Request>(); // suspended request
+        protected Response pendingResp;
+        protected volatile long deadline; // time at which the suspended transaction times out, or 0
+
+        /**
+         * Constructs a ChannelConnection for the given channel.
+         *
+         * @param channel the connection's socket channel (in non-blocking mode)
+         * @param selector the selector thread which handles the channel
+         * @throws IOException if an error occurs
+         */
+        public ChannelConnection(SocketChannel channel, SelectorThread selector) throws IOException {
+            this.channel = channel;
+            this.selector = selector;
+            this.tls = selector.sslContext == null ? null
+                : new TLSChannel(channel, createSSLEngine(selector.sslContext, channel), selector.tlsPool);
+            if (tls != null)
+                tls.setHandshakeMetrics(handshakeMetrics);
+            this.lastActive = System.currentTimeMillis();
+            pool = bufferPool;
+            buf = pool.get();
+            buf.flip(); // keep buffer in read mode
+            in = new ChannelInputStream(this, buf);
+            out = new ChannelOutputStream(this, pool.get()) {
+                @Override // transfer directly to the socket channel (not this wrapper) to allow zero-copy
+                protected long transfer(FileChannel src, long position, long count) throws IOException {
+                    if (tls != null) // data must be encrypted
+                        return super.transfer(src, position, count);
+                    long transferred;
+                    while ((transferred = src.transferTo(position, count, channel)) == 0 && position < src.size())
+                        await(SelectionKey.OP_WRITE);
+                    return transferred;
+                }
+            };
+        }
 
         /**
-         * Constructs a Response whose output is written to the given stream.
+         * Reads available data into the connection buffer. This method is
+         * called by the selector thread while the connection is idle.
          *
-         * @param out the stream to which the response is written
+         * @return true if the connection should be dispatched for handling,
+         *         i.e. a complete request head is available or the buffer is full
+         * @throws IOException if an error occurs or the end of stream is reached
          */
-        public Response(OutputStream out) {
-            this.out = out;
-            this.headers = new Headers();
+        protected boolean receive() throws IOException {
+            if (tls != null && tls.isHandshaking())
+                return true; // the handling thread performs the handshake
+            buf.compact();
+            int count;
+            try {
+                count = tls == null ? channel.read(buf) : tls.read(buf, false);
+            } finally {
+                buf.flip();
+            }
+            if (count < 0)
+                throw new EOFException("connection closed by client");
+            lastActive = System.currentTimeMillis();
+            return buf.remaining() == buf.capacity() || hasRequestHead() || tls != null && tls.isHandshaking();
         }
 
         /**
-         * Sets whether this response's body is discarded or sent.
+         * Returns whether the unread buffered data contains a complete request
+         * head, i.e. a request line and headers terminated by an empty line.
          *
-         * @param discardBody specifies whether the body is discarded or not
+         * @return whether the buffer contains a complete request head
          */
-        public void setDiscardBody(boolean discardBody) {
-            this.discardBody = discardBody;
+        protected boolean hasRequestHead() {
+            return HTTPServer.hasRequestHead(buf);
         }
 
         /**
-         * Sets the request which is used in determining the capabilities
-         * supported by the client (e.g. compression, encoding, etc.)
+         * Returns whether a complete request head has already been received,
+         * after moving any data already decrypted by the TLS layer (which the
+         * selector would not be notified of) into the connection buffer.
+         * This method is called by the thread handling the connection.
          *
-         * @param req the request
+         * @return whether a complete request head has been received
+         * @throws IOException if an error occurs
          */
-        public void setClientCapabilities(Request req) { this.req = req; }
+        protected boolean hasPendingRequest() throws IOException {
+            if (tls != null && tls.hasBufferedData() && buf.remaining() < buf.capacity()
+                    && !hasRequestHead() && !tls.isHandshaking()) {
+                buf.compact();
+                try {
+                    tls.read(buf, false);
+                } finally {
+                    buf.flip();
+                }
+            }
+            return hasRequestHead();
+        }
 
         /**
-         * Returns the request headers collection.
+         * Waits until the channel is ready for the given operations.
+         * This method is called by the thread handling the connection.
          *
-         * @return the request headers collection
+         * @param ops the {@link SelectionKey} operations to wait for
+         * @throws SocketTimeoutException if the socket timeout has elapsed
+         * @throws IOException if an error occurs or the connection is closed
          */
-        public Headers getHeaders() { return headers; }
+        protected void await(int ops) throws IOException {
+            // note: we use a lock rather than a monitor so that virtual threads are not pinned
+            lock.lock();
+            try {
+                ready = false;
+                if (!selector.interestOps(key, ops))
+                    throw new ClosedChannelException();
+                long timeout = socketTimeout;
+                long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+                while (!ready) {
+                    if (!key.isValid())
+                        throw new ClosedChannelException();
+                    if (timeout == 0)
+                        readyCondition.await();
+                    else if (nanos <= 0)
+                        throw new SocketTimeoutException("timeout waiting for channel");
+                    else
+                        nanos = readyCondition.awaitNanos(nanos);
+                }
+            } catch (InterruptedException ie) {
+                throw new InterruptedIOException("interrupted waiting for channel");
+            } finally {
+                lock.unlock();
+            }
+        }
 
         /**
-         * Returns the underlying output stream to which the response is written.
-         * Except for special cases, you should use {@link #getBody()} instead.
+         * Signals the thread handling the connection that the channel operations
+         * it is waiting for are ready. This method is called by the selector thread.
+         */
+        protected void signal() {
+            lock.lock();
+            try {
+                ready = true;
+                readyCondition.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Dispatches the connection for handling. If a TLS handshake is pending and
+         * a {@link #setHandshakeExecutor handshake executor} is set, the handshake
+         * is performed by it first, so that the executor handling requests is not
+         * occupied by handshakes.
          *
-         * @return the underlying output stream to which the response is written
+         * @throws RejectedExecutionException if the executor rejects the connection
          */
-        public OutputStream getOutputStream() { return out; }
+        protected void dispatch() {
+            dispatched = true;
+            Executor hs = handshakeExecutor;
+            if (hs != null && tls != null && tls.isHandshaking()) {
+                hs.execute(new Runnable() {
+                    public void run() {
+                        handshake();
+                    }
+                });
+            } else {
+                executor.execute(this);
+            }
+        }
 
         /**
-         * Returns whether the response headers were already sent.
+         * Performs the TLS handshake, and then dispatches the connection to
+         * the executor if a request was already received, or else returns
+         * it to the selector. This method is called by the handshake executor.
+         */
+        protected void handshake() {
+            boolean keep = false;
+            try {
+                while (!tls.handshake())
+                    await(tls.getInterestOps());
+                if (hasPendingRequest()) {
+                    executor.execute(this);
+                    keep = true;
+                } else {
+                    keep = park();
+                }
+            } catch (IOException ignore) {
+            } catch (RejectedExecutionException ignore) { // overloaded
+            } finally {
+                if (!keep)
+                    close();
+            }
+        }
+
+        /**
+         * Returns the connection to the selector, to wait for the next request.
          *
-         * @return whether the response headers were already sent
+         * @return true if successful, or false if the selector has been closed
          */
-        public boolean headersSent() { return state == 1; }
+        protected boolean park() {
+            lastActive = System.currentTimeMillis();
+            dispatched = false;
+            return selector.interestOps(key, SelectionKey.OP_READ);
+        }
 
         /**
-         * Returns an output stream into which the response body can be written.
-         * The stream applies encodings (e.g. compression) according to the sent headers.
-         * This method must be called after response headers have been sent
-         * that indicate there is a body. Normally, the content should be
-         * prepared (not sent) even before the headers are sent, so that any
-         * errors during processing can be caught and a proper error response returned -
-         * after the headers are sent, it's too late to change the status into an error.
+         * Reads data from the channel, waiting until at least one byte is available.
          *
-         * @return an output stream into which the response body can be written,
-         *         or null if the body should not be written (e.g. it is discarded)
+         * @param dst the buffer into which the data is read
+         * @return the number of bytes read, or -1 if the end of stream is reached
          * @throws IOException if an error occurs
          */
-        public OutputStream getBody() throws IOException {
-            if (encoders[0] != null || discardBody)
-                return encoders[0]; // return the existing stream (or null)
-            // set up chain of encoding streams according to headers
-            List<String> te = Arrays.asList(splitElements(headers.get("Transfer-Encoding"), true));
-            List<String> ce = Arrays.asList(splitElements(headers.get("Content-Encoding"), true));
-            int i = encoders.length - 1;
-            encoders[i] = new FilterOutputStream(out) {
-                @Override
-                public void close() {} // keep underlying connection stream open for now
-                @Override // override the very inefficient default implementation
-                public void write(byte[] b, int off, int len) throws IOException { out.write(b, off, len); }
-            };
-            if (te.contains("chunked"))
-                encoders[--i] = new ChunkedOutputStream(encoders[i + 1]);
-            if (ce.contains("gzip") || te.contains("gzip"))
-                encoders[--i] = new GZIPOutputStream(encoders[i + 1], 4096);
-            else if (ce.contains("deflate") || te.contains("deflate"))
-                encoders[--i] = new DeflaterOutputStream(encoders[i + 1]);
-            encoders[0] = encoders[i];
-            encoders[i] = null; // prevent duplicate reference
-            return encoders[0]; // returned stream is always first
+        public int read(ByteBuffer dst) throws IOException {
+            int count;
+            if (tls == null) {
+                while ((count = channel.read(dst)) == 0 && dst.hasRemaining())
+                    await(SelectionKey.OP_READ);
+            } else {
+                while ((count = tls.read(dst)) == 0 && dst.hasRemaining())
+                    await(tls.getInterestOps());
+            }
+            return count;
         }
 
         /**
-         * Closes this response and flushes all output.
+         * Writes data to the channel, waiting until at least one byte is written.
          *
+         * @param src the buffer containing the data to write
+         * @return the number of bytes written
          * @throws IOException if an error occurs
          */
-        public void close() throws IOException {
-            state = -1; // closed
-            if (encoders[0] != null)
-                encoders[0].close(); // close all chained streams (except the underlying one)
-            out.flush(); // always flush underlying stream (even if getBody was never called)
+        public int write(ByteBuffer src) throws IOException {
+            int count;
+            if (tls == null) {
+                while ((count = channel.write(src)) == 0 && src.hasRemaining())
+                    await(SelectionKey.OP_WRITE);
+            } else {
+                while ((count = tls.write(src)) == 0 && src.hasRemaining())
+                    await(tls.getInterestOps());
+                while (!tls.flush()) // send encrypted data now, as a plain socket write would
+                    await(SelectionKey.OP_WRITE);
+            }
+            return count;
         }
 
         /**
-         * Sends the response headers with the given response status.
-         * A Date header is added if it does not already exist.
-         * If the response has a body, the Content-Length/Transfer-Encoding
-         * and Content-Type headers must be set before sending the headers.
+         * Shuts down the connection's output, indicating that no more data will be
+         * written. On TLS connections, a close_notify alert is sent beforehand.
          *
-         * @param status the response status
-         * @throws IOException if an error occurs or headers were already sent
-         * @see #sendHeaders(int, long, long, String, String, long[])
+         * @throws IOException if an error occurs
          */
-        public void sendHeaders(int status) throws IOException {
-            if (headersSent())
-                throw new IOException("headers were already sent");
-            if (!headers.contains("Date"))
-                headers.add("Date", formatDate(System.currentTimeMillis()));
-            headers.add("Server", "JLHTTP/2.5");
-            out.write(getBytes("HTTP/1.1 ", Integer.toString(status), " ", statuses[status]));
-            out.write(CRLF);
-            headers.writeTo(out);
-            state = 1; // headers sent
+        protected void shutdownOutput() throws IOException {
+            if (tls != null) {
+                tls.closeOutbound();
+                while (!tls.flush())
+                    await(SelectionKey.OP_WRITE);
+            }
+            channel.shutdownOutput();
+        }
+
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException ignore) {}
+            if (pending.getAndSet(null) != null) { // suspended transaction will not be resumed
+                signal(); // wake its handler if it is waiting for the (now closed) channel
+                pendingResp.fence();
+                pendingResp = null;
+            }
+            release();
         }
 
         /**
-         * Sends the response headers, including the given response status
-         * and description, and all response headers. If they do not already
-         * exist, the following headers are added as necessary:
-         * Content-Range, Content-Type, Transfer-Encoding, Content-Encoding,
-         * Content-Length, Last-Modified, ETag, Connection  and Date. Ranges are
-         * properly calculated as well, with a 200 status changed to a 206 status.
+         * Returns the connection's buffers to the pool, without closing its channel.
+         * If an asynchronous handler which may still use them has not completed,
+         * they are released once it does.
+         */
+        protected void release() {
+            selector.selector.wakeup(); // release channel's selector registration promptly
+            CompletableFuture<Integer> async = ((ChannelOutputStream)out).async;
+            if (async != null && !async.isDone()) { // handler may still use the buffers
+                async.whenComplete(new BiConsumer<Integer, Throwable>() {
+                    public void accept(Integer status, Throwable error) {
+                        release();
+                    }
+                });
+                return;
+            }
+            lock.lock();
+            try {
+                if (!closed) { // return buffers to pool only once
+                    closed = true;
+                    pool.release(buf);
+                    pool.release(((ChannelOutputStream)out).buf);
+                    if (tls != null)
+                        tls.close(); // releases its buffers too
+                }
+            } catch (IOException ignore) {
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Marks the current transaction to be suspended, once the handling thread
+         * returns from processing it, until its asynchronous handler completes.
          *
-         * @param status the response status
-         * @param length the response body length, or zero if there is no body,
-         *        or negative if there is a body but its length is not yet known
-         * @param lastModified the last modified date of the response resource,
-         *        or non-positive if unknown. A time in the future will be
-         *        replaced with the current system time.
-         * @param etag the ETag of the response resource, or null if unknown
-         *        (see RFC2616#3.11)
-         * @param contentType the content type of the response resource, or null
-         *        if unknown (in which case "application/octet-stream" will be sent)
-         * @param range the content range that will be sent, or null if the
-         *        entire resource will be sent
+         * @param req the transaction request
+         * @param resp the transaction response
+         */
+        protected void suspend(Request req, Response resp) {
+            suspendedReq = req;
+            suspendedResp = resp;
+        }
+
+        /**
+         * Suspends the marked transaction, releasing the handling thread, and
+         * arranges for it to be resumed when its asynchronous handler completes
+         * (or times out).
+         */
+        protected void suspend() {
+            Request req = suspendedReq;
+            pendingResp = suspendedResp;
+            suspendedReq = null;
+            suspendedResp = null;
+            int timeout = getAsyncTimeout(req);
+            deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+            pending.set(req);
+            req.pending.whenComplete(new BiConsumer<Integer, Throwable>() {
+                public void accept(Integer status, Throwable error) {
+                    resume(status, error);
+                }
+            });
+        }
+
+        /**
+         * Resumes the suspended transaction, if it was not already resumed,
+         * by dispatching the connection for handling.
+         *
+         * @param status the status with which the asynchronous handler completed
+         * @param error the exception with which the asynchronous handler completed, or null
+         */
+        protected void resume(final Integer status, final Throwable error) {
+            final Request req = pending.getAndSet(null);
+            if (req == null)
+                return; // already resumed (i.e. timed out)
+            deadline = 0;
+            final Response resp = pendingResp;
+            pendingResp = null;
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        process(req, resp, status, error);
+                    }
+                });
+            } catch (RejectedExecutionException ree) {
+                close(); // overloaded
+            }
+        }
+
+        /**
+         * Handles the connection's pending transactions, and then either
+         * returns it to the selector or closes it.
+         */
+        public void run() {
+            process(null, null, null, null);
+        }
+
+        /**
+         * Handles the connection's pending transactions, starting with the given
+         * resumed transaction (if any), and then either returns the connection to
+         * the selector, suspends it while an asynchronous handler completes,
+         * or closes it.
+         *
+         * @param req the resumed transaction request, or null if there is none
+         * @param resp the resumed transaction response
+         * @param status the status with which the asynchronous handler completed
+         * @param error the exception with which the asynchronous handler completed, or null
+         */
+        protected void process(Request req, Response resp, Integer status, Throwable error) {
+            boolean keep = false; // whether the connection remains open
+            try {
+                boolean alive = req == null ? processTransaction(in, out)
+                    : resumeTransaction(in, req, resp, status, error);
+                while (alive && hasPendingRequest()) // handle already received requests
+                    alive = processTransaction(in, out);
+                if (suspendedReq != null) {
+                    keep = true;
+                    suspend();
+                } else if (alive) {
+                    keep = park();
+                } else {
+                    // RFC7230#6.6 - close socket gracefully
+                    shutdownOutput(); // half-close socket (only output)
+                    transfer(in, null, -1); // consume input
+                }
+            } catch (IOException ignore) {
+            } finally {
+                if (!keep)
+                    close(); // and finally close socket fully
+            }
+        }
+    }
+
+    /**
+     * The {@code SelectorThread} accepts connections and multiplexes the idle
+     * ones using a non-blocking {@link Selector}, dispatching them to the
+     * executor when a request arrives.
+     *
+     * @see ChannelConnection
+     */
+    protected class SelectorThread extends AcceptorThread {
+
+        protected final ServerSocketChannel serverChannel;
+        protected final Selector selector;
+        protected final SSLContext sslContext; // or null if connections are plain
+        protected final BufferPool tlsPool; // buffers for the TLS layer
+
+        /**
+         * Constructs a SelectorThread which accepts connections
+         * from the given server channel.
+         *
+         * @param serverChannel the server channel (in non-blocking mode),
+         *        which may be shared with other selector threads
+         * @param index the index of this acceptor among the server's acceptors
          * @throws IOException if an error occurs
          */
-        public void sendHeaders(int status, long length, long lastModified,
-                String etag, String contentType, long[] range) throws IOException {
-            if (range != null) {
-                headers.add("Content-Range", "bytes " + range[0] + "-" +
-                    range[1] + "/" + (length >= 0 ? length : "*"));
-                length = range[1] - range[0] + 1;
-                if (status == 200)
-                    status = 206;
+        public SelectorThread(ServerSocketChannel serverChannel, int index) throws IOException {
+            super(serverChannel.socket(), index);
+            this.serverChannel = serverChannel;
+            this.sslContext = HTTPServer.this.sslContext;
+            this.tlsPool = sslContext == null ? null : new BufferPool(
+                TLSChannel.getBufferSize(sslContext.createSSLEngine()), 1024, false);
+            this.selector = Selector.open();
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
+
+        /**
+         * Sets the operations of interest for the given key,
+         * and wakes up the selector so that they take effect.
+         *
+         * @param key the selection key
+         * @param ops the {@link SelectionKey} operations of interest
+         * @return true if successful, or false if the key is no longer valid
+         */
+        protected boolean interestOps(SelectionKey key, int ops) {
+            try {
+                key.interestOps(ops);
+            } catch (CancelledKeyException cke) {
+                return false;
             }
-            String ct = headers.get("Content-Type");
-            if (ct == null) {
-                ct = contentType != null ? contentType : "application/octet-stream";
-                headers.add("Content-Type", ct);
+            selector.wakeup();
+            return true;
+        }
+
+        /**
+         * Accepts all pending connections and registers them with the selector.
+         *
+         * @throws IOException if the server channel cannot accept connections
+         */
+        protected void accept() throws IOException {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) { // null if none (or taken by another acceptor)
+                countAccept();
+                try {
+                    channel.configureBlocking(false);
+                    channel.socket().setTcpNoDelay(true); // we buffer anyway, so improve latency
+                    ChannelConnection conn = new ChannelConnection(channel, this);
+                    conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+                } catch (IOException ioe) {
+                    channel.close();
+                }
             }
-            if (!headers.contains("Content-Length") && !headers.contains("Transfer-Encoding")) {
-                // RFC2616#3.6: transfer encodings are case-insensitive and must not be sent to an HTTP/1.0 client
-                boolean modern = req != null && req.getVersion().endsWith("1.1");
-                String accepted = req == null ? null : req.getHeaders().get("Accept-Encoding");
-                List<String> encodings = Arrays.asList(splitElements(accepted, true));
-                String compression = encodings.contains("gzip") ? "gzip" :
-                                     encodings.contains("deflate") ? "deflate" : null;
-                if (compression != null && (length < 0 || length > 300) && isCompressible(ct) && modern) {
-                    headers.add("Transfer-Encoding", "chunked"); // compressed data is always unknown length
-                    headers.add("Content-Encoding", compression);
-                } else if (length < 0 && modern) {
-                    headers.add("Transfer-Encoding", "chunked"); // unknown length
-                } else if (length >= 0) {
-                    headers.add("Content-Length", Long.toString(length)); // known length
+        }
+
+        /**
+         * Handles a selected connection which is ready for I/O.
+         *
+         * @param key the connection's selection key
+         * @param conn the connection
+         */
+        protected void handle(SelectionKey key, ChannelConnection conn) {
+            try {
+                if (conn.dispatched) { // its handling thread is waiting for the channel
+                    key.interestOps(0);
+                    conn.signal();
+                } else if (conn.receive()) { // request (or handshake) arrived on idle connection
+                    key.interestOps(0);
+                    conn.dispatch();
+                }
+            } catch (IOException ioe) {
+                conn.close();
+            } catch (RejectedExecutionException ree) {
+                reject(conn); // overloaded
+            }
+        }
+
+        /**
+         * Closes idle connections on which no data was received within
+         * the socket timeout, and times out suspended transactions whose
+         * asynchronous handlers did not complete within the async timeout.
+         *
+         * @param now the current time
+         */
+        protected void expire(long now) {
+            int timeout = socketTimeout;
+            for (SelectionKey key : selector.keys()) {
+                if (!(key.attachment() instanceof ChannelConnection))
+                    continue;
+                ChannelConnection conn = (ChannelConnection)key.attachment();
+                if (conn.dispatched) {
+                    long deadline = conn.deadline;
+                    if (deadline > 0 && now >= deadline)
+                        conn.resume(null, new TimeoutException("timeout waiting for handler"));
+                } else if (timeout > 0 && now - conn.lastActive > timeout) {
+                    conn.close();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            setName();
+            try {
+                long lastExpired = System.currentTimeMillis();
+                while (!serv.isClosed()) {
+                    selector.select(1000);
+                    for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        try {
+                            if (key.isAcceptable())
+                                accept();
+                            else if (key.isValid())
+                                handle(key, (ChannelConnection)key.attachment());
+                        } catch (CancelledKeyException ignore) {} // closed concurrently
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastExpired >= 1000) {
+                        expire(now);
+                        lastExpired = now;
+                    }
+                }
+            } catch (IOException ignore) {
+            } finally {
+                // close idle connections, and release threads waiting on busy ones
+                List<ChannelConnection> conns = new ArrayList<ChannelConnection>();
+                for (SelectionKey key : selector.keys())
+                    if (key.attachment() instanceof ChannelConnection)
+                        conns.add((ChannelConnection)key.attachment());
+                try {
+                    selector.close();
+                } catch (IOException ignore) {}
+                for (ChannelConnection conn : conns) {
+                    if (conn.dispatched && conn.pending.get() == null)
+                        conn.signal();
+                    else
+                        conn.close(); // idle or suspended
                 }
             }
-            if (!headers.contains("Vary")) // RFC7231#7.1.4: Vary field should include headers
-                headers.add("Vary", "Accept-Encoding"); // that are used in selecting representation
-            if (lastModified > 0 && !headers.contains("Last-Modified")) // RFC2616#14.29
-                headers.add("Last-Modified", formatDate(Math.min(lastModified, System.currentTimeMillis())));
-            if (etag != null && !headers.contains("ETag"))
-                headers.add("ETag", etag);
-            if (req != null && "close".equalsIgnoreCase(req.getHeaders().get("Connection"))
-                    && !headers.contains("Connection"))
-                headers.add("Connection", "close"); // #RFC7230#6.6: should reply to close with close
-            sendHeaders(status);
         }
+    }
+
+    /**
+     * The {@code LingerThread} closes rejected connections gracefully. Closing
+     * a socket while unread request data remains in its receive buffer resets
+     * the connection, which usually discards the response before the client reads
+     * it. So after the response is sent and output is shut down, the connection
+     * is handed to this thread, which reads and discards incoming data until the
+     * client closes the connection or a short linger time elapses.
+     */
+    protected class LingerThread extends Thread {
+
+        protected static final int LINGER_TIME = 2000; // milliseconds
+        protected static final int MAX_LINGERING = 1024; // connections beyond this are closed at once
+
+        protected final Selector selector;
+        protected final Queue<SocketChannel> added = new ConcurrentLinkedQueue<SocketChannel>();
+        protected final AtomicInteger lingering = new AtomicInteger();
+        protected final ByteBuffer discarded = ByteBuffer.allocate(4096);
+        protected volatile boolean running = true;
 
         /**
-         * Sends the full response with the given status, and the given string
-         * as the body. The text is sent in the UTF-8 charset. If a
-         * Content-Type header was not explicitly set, it will be set to
-         * text/html, and so the text must contain valid (and properly
-         * {@link HTTPServer#escapeHTML escaped}) HTML.
+         * Constructs a LingerThread.
          *
-         * @param status the response status
-         * @param text the text body (sent as text/html)
          * @throws IOException if an error occurs
          */
-        public void send(int status, String text) throws IOException {
-            byte[] content = text.getBytes("UTF-8");
-            sendHeaders(status, content.length, -1,
-                "W/\"" + Integer.toHexString(text.hashCode()) + "\"",
-                "text/html; charset=utf-8", null);
-            OutputStream out = getBody();
-            if (out != null)
-                out.write(content);
+        public LingerThread() throws IOException {
+            selector = Selector.open();
+            setName(getClass().getSimpleName() + "-" + port);
+            setDaemon(true);
         }
 
         /**
-         * Sends an error response with the given status and detailed message.
-         * An HTML body is created containing the status and its description,
-         * as well as the message, which is escaped using the
-         * {@link HTTPServer#escapeHTML escape} method.
+         * Closes the given channel once the client closes it or the linger time elapses.
          *
-         * @param status the response status
-         * @param text the text body (sent as text/html)
-         * @throws IOException if an error occurs
+         * @param channel the channel, whose output was already shut down
          */
-        public void sendError(int status, String text) throws IOException {
-            send(status, String.format(
-                "<!DOCTYPE html>%n<html>%n<head><title>%d %s</title></head>%n" +
-                "<body><h1>%d %s</h1>%n<p>%s</p>%n</body></html>",
-                status, statuses[status], status, statuses[status], escapeHTML(text)));
+        public void linger(SocketChannel channel) {
+            if (!running || lingering.incrementAndGet() > MAX_LINGERING) {
+                lingering.decrementAndGet();
+                close(channel);
+            } else {
+                added.add(channel);
+                selector.wakeup();
+            }
         }
 
         /**
-         * Sends an error response with the given status and default body.
-         *
-         * @param status the response status
-         * @throws IOException if an error occurs
+         * Stops this thread, closing all lingering connections.
          */
-        public void sendError(int status) throws IOException {
-            String text = status < 400 ? ":)" : "sorry it didn't work out :(";
-            sendError(status, text);
+        public void shutdown() {
+            running = false;
+            selector.wakeup();
         }
 
         /**
-         * Sends the response body. This method must be called only after the
-         * response headers have been sent (and indicate that there is a body).
+         * Closes the given channel.
          *
-         * @param body a stream containing the response body
-         * @param length the full length of the response body, or -1 for the whole stream
-         * @param range the sub-range within the response body that should be
-         *        sent, or null if the entire body should be sent
-         * @throws IOException if an error occurs
+         * @param channel the channel to close
          */
-        public void sendBody(InputStream body, long length, long[] range) throws IOException {
-            OutputStream out = getBody();
-            if (out != null) {
-                if (range != null) {
-                    long offset = range[0];
-                    length = range[1] - range[0] + 1;
-                    while (offset > 0) {
-                        long skip = body.skip(offset);
-                        if (skip == 0)
-                            throw new IOException("can't skip to " + range[0]);
-                        offset -= skip;
-                    }
-                }
-                transfer(body, out, length);
-            }
+        protected void close(SocketChannel channel) {
+            try {
+                channel.close();
+            } catch (IOException ignore) {}
         }
 
         /**
-         * Sends a 301 or 302 response, redirecting the client to the given URL.
+         * Closes the given lingering channel and discards its registration.
          *
-         * @param url the absolute URL to which the client is redirected
-         * @param permanent specifies whether a permanent (301) or
-         *        temporary (302) redirect status is sent
-         * @throws IOException if an IO error occurs or url is malformed
+         * @param key the channel's selection key
          */
-        public void redirect(String url, boolean permanent) throws IOException {
-            try {
-                url = new URI(url).toASCIIString();
-            } catch (URISyntaxException e) {
-                throw new IOException("malformed URL: " + url);
-            }
-            headers.add("Location", url);
-            // some user-agents expect a body, so we send it
-            if (permanent)
-                sendError(301, "Permanently moved to " + url);
-            else
-                sendError(302, "Temporarily moved to " + url);
+        protected void close(SelectionKey key) {
+            close((SocketChannel)key.channel());
+            lingering.decrementAndGet();
         }
-    }
 
-    /**
-     * The {@code SocketHandlerThread} handles accepted sockets.
-     */
-    protected class SocketHandlerThread extends Thread {
         @Override
         public void run() {
-            setName(getClass().getSimpleName() + "-" + port);
             try {
-                ServerSocket serv = HTTPServer.this.serv; // keep local to avoid NPE when stopped
-                while (serv != null && !serv.isClosed()) {
-                    final Socket sock = serv.accept();
-                    executor.execute(new Runnable() {
-                        public void run() {
-                            try {
-                                try {
-                                    sock.setSoTimeout(socketTimeout);
-                                    sock.setTcpNoDelay(true); // we buffer anyway, so improve latency
-                                    handleConnection(sock.getInputStream(), sock.getOutputStream());
-                                } finally {
-                                    try {
-                                        // RFC7230#6.6 - close socket gracefully
-                                        // (except SSL socket which doesn't support half-closing)
-                                        if (!(sock instanceof SSLSocket)) {
-                                            sock.shutdownOutput(); // half-close socket (only output)
-                                            transfer(sock.getInputStream(), null, -1); // consume input
-                                        }
-                                    } finally {
-                                        sock.close(); // and finally close socket fully
-                                    }
-                                }
-                            } catch (IOException ignore) {}
+                while (running) {
+                    selector.select(500);
+                    long now = System.currentTimeMillis();
+                    for (SocketChannel channel; (channel = added.poll()) != null; ) {
+                        try {
+                            channel.configureBlocking(false);
+                            channel.register(selector, SelectionKey.OP_READ, now + LINGER_TIME);
+                        } catch (IOException ioe) {
+                            close(channel);
+                            lingering.decrementAndGet();
+                        }
+                    }
+                    for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        try {
+                            discarded.clear();
+                            if (((SocketChannel)key.channel()).read(discarded) < 0)
+                                close(key); // client closed the connection
+                        } catch (IOException ioe) {
+                            close(key);
                         }
-                    });
+                    }
+                    for (SelectionKey key : selector.keys())
+                        if (key.isValid() && now >= (Long)key.attachment())
+                            close(key);
                 }
-            } catch (IOException ignore) {}
+            } catch (IOException ignore) {
+            } finally {
+                for (SelectionKey key : selector.keys())
+                    close((SocketChannel)key.channel());
+                for (SocketChannel channel; (channel = added.poll()) != null; )
+                    close(channel);
+                try {
+                    selector.close();
+                } catch (IOException ignore) {}
+            }
         }
     }
 
     protected volatile int port;
     protected volatile int socketTimeout = 10000;
+    protected volatile int asyncTimeout = 30000;
     protected volatile ServerSocketFactory serverSocketFactory;
+    protected volatile SSLContext sslContext;
+    protected volatile int sessionCacheSize = -1; // or negative to use the context's settings
+    protected volatile int sessionTimeout;
+    protected volatile Executor handshakeExecutor;
+    protected final HandshakeMetrics handshakeMetrics = new HandshakeMetrics();
     protected volatile boolean secure;
+    protected volatile boolean nonBlocking;
+    protected volatile boolean virtualThreads;
+    protected volatile CompressionCache compressionCache;
+    protected volatile DeflaterPool deflaterPool = DeflaterPool.getDefault();
+    protected volatile CompressionPolicy compressionPolicy = new CompressionPolicy();
+    protected volatile Executor compressionExecutor;
+    protected volatile int compressionBlockSize;
+    protected volatile int compressionParallelism;
+    protected volatile int[] compressionParams = { Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY };
+    protected final Map<String, int[]> contentCompressionParams = new ConcurrentHashMap<String, int[]>();
+    protected volatile BufferPool bufferPool = BufferPool.getDefault();
+    protected volatile int chunkBufferSize = 4096;
+    protected volatile int acceptors = 1;
+    protected volatile boolean reusePort;
+    protected volatile int maxWorkers;
+    protected volatile int workQueueSize;
+    protected volatile int retryAfter = 1;
+    protected volatile byte[] rejection; // pre-encoded overload response
+    protected final AtomicLong rejected = new AtomicLong();
     protected volatile Executor executor;
     protected volatile ServerSocket serv;
+    protected volatile AcceptorThread[] acceptorThreads;
+    protected LingerThread lingerThread; // created on first rejection (guarded by this)
     protected final Map<String, VirtualHost> hosts = new ConcurrentHashMap<String, VirtualHost>();
 
     /**
@@ -1951,25 +6162,432 @@ public class HTTPServer {
      */
     public void setServerSocketFactory(ServerSocketFactory factory) {
         this.serverSocketFactory = factory;
-        this.secure = factory instanceof SSLServerSocketFactory;
+        this.secure = factory instanceof SSLServerSocketFactory || sslContext != null;
+    }
+
+    /**
+     * Sets the SSL context used to secure connections (HTTPS).
+     * <p>
+     * In {@link #setNonBlocking non-blocking mode}, connections are secured by a
+     * TLS layer using an {@link SSLEngine} (see {@link TLSChannel}), so that TLS
+     * connections are multiplexed by the selector like plain ones, and idle
+     * keep-alive connections do not occupy a thread. Handshakes are performed
+     * by the thread handling the connection. Otherwise, the context's server
+     * socket factory is used if no {@link #setServerSocketFactory factory} is set.
+     * <p>
+     * The engines created by the context may be configured (e.g. enabled protocols
+     * or client authentication) by overriding {@link #createSSLEngine}.
+     * The port should usually also be changed for HTTPS, e.g. port 443 instead of 80.
+     *
+     * @param context the SSL context, or null for plain connections
+     */
+    public void setSSLContext(SSLContext context) {
+        this.sslContext = context;
+        this.secure = context != null || serverSocketFactory instanceof SSLServerSocketFactory;
+    }
+
+    /**
+     * Returns the SSL context used to secure connections.
+     *
+     * @return the SSL context, or null if it is not set
+     */
+    public SSLContext getSSLContext() {
+        return sslContext;
+    }
+
+    /**
+     * Sets the server-side session cache settings of the {@link #setSSLContext
+     * SSL context}, which are applied when the server is started. Cached sessions
+     * allow returning clients to resume them with an abbreviated handshake,
+     * which is much cheaper than a full one.
+     * <p>
+     * Note that stateless session resumption using session tickets, which does not
+     * use the cache, is a JVM-wide JSSE setting (on JDK 13 and later, it is enabled by
+     * default, and controlled by the {@code jdk.tls.server.enableSessionTicketExtension}
+     * system property), so it cannot be configured per server.
+     *
+     * @param size the maximum number of cached sessions, or zero for no limit
+     * @param timeout the time after which cached sessions expire, in seconds,
+     *        or zero for no limit
+     * @throws IllegalArgumentException if a given value is negative
+     */
+    public void setSSLSessionCache(int size, int timeout) {
+        if (size < 0 || timeout < 0)
+            throw new IllegalArgumentException("invalid session cache settings: " + size + ", " + timeout);
+        this.sessionCacheSize = size;
+        this.sessionTimeout = timeout;
+    }
+
+    /**
+     * Sets an executor which performs TLS handshakes in {@link #setNonBlocking
+     * non-blocking mode}, before the connections are dispatched to the
+     * {@link #setExecutor executor} to handle their requests. This separates
+     * the CPU-intensive handshakes from request processing, so that a burst
+     * of new connections does not delay requests on established ones.
+     *
+     * @param executor the executor, or null to perform handshakes by the
+     *        threads handling the requests (the default)
+     */
+    public void setHandshakeExecutor(Executor executor) {
+        this.handshakeExecutor = executor;
+    }
+
+    /**
+     * Returns the metrics of the TLS handshakes performed by this server.
+     *
+     * @return the handshake metrics
+     */
+    public HandshakeMetrics getHandshakeMetrics() {
+        return handshakeMetrics;
+    }
+
+    /**
+     * Sets the socket timeout for established connections.
+     *
+     * @param timeout the socket timeout in milliseconds
+     */
+    public void setSocketTimeout(int timeout) { this.socketTimeout = timeout; }
+
+    /**
+     * Sets the timeout for {@link AsyncContextHandler asynchronous handlers}.
+     * If a handler's result does not complete within the timeout after the
+     * request is handed to it, a 503 (Service Unavailable) response is sent
+     * (if possible) and the connection is closed. The default is 30 seconds.
+     * It can be overridden per {@link VirtualHost.ContextInfo#setAsyncTimeout
+     * context} or per {@link Request#setAsyncTimeout request}.
+     *
+     * @param timeout the timeout in milliseconds, or 0 for no timeout
+     */
+    public void setAsyncTimeout(int timeout) { this.asyncTimeout = timeout; }
+
+    /**
+     * Returns the timeout for the given request's {@link AsyncContextHandler
+     * asynchronous handler}, which is the request's own timeout if it was set,
+     * or else its context's, or else the server's.
+     *
+     * @param req the request
+     * @return the timeout in milliseconds, or 0 for no timeout
+     * @see Request#setAsyncTimeout
+     * @see VirtualHost.ContextInfo#setAsyncTimeout
+     */
+    protected int getAsyncTimeout(Request req) {
+        int timeout = req.asyncTimeout;
+        if (timeout < 0)
+            timeout = req.getContext().getAsyncTimeout();
+        return timeout < 0 ? asyncTimeout : timeout;
+    }
+
+    /**
+     * Sets whether connections are handled in non-blocking mode.
+     * <p>
+     * By default, each connection is handled by its own thread for as long as
+     * it remains open, including while a persistent (keep-alive) connection is
+     * idle between requests. In non-blocking mode, idle connections are instead
+     * multiplexed by a single {@link SelectorThread}, and a thread is used only
+     * while a request is actually being handled. This allows the server to
+     * maintain a large number of mostly-idle connections with few threads.
+     * Context handlers use the same {@link Request}/{@link Response} API in both modes.
+     * <p>
+     * Non-blocking mode uses plain channels and therefore does not support
+     * a custom {@link #setServerSocketFactory ServerSocketFactory}.
+     *
+     * @param nonBlocking specifies whether connections are handled in non-blocking mode
+     */
+    public void setNonBlocking(boolean nonBlocking) { this.nonBlocking = nonBlocking; }
+
+    /**
+     * Sets the number of threads which accept connections (default 1).
+     * Multiple acceptors accept connections concurrently, which helps during
+     * connection storms. In {@link #setNonBlocking non-blocking mode}, each
+     * acceptor also multiplexes the idle connections which it accepted.
+     * <p>
+     * The acceptors share a single server socket, unless {@link #setReusePort
+     * SO_REUSEPORT} is enabled, in which case each has its own.
+     *
+     * @param acceptors the number of acceptor threads
+     * @throws IllegalArgumentException if the given number is not positive
+     */
+    public void setAcceptors(int acceptors) {
+        if (acceptors < 1)
+            throw new IllegalArgumentException("invalid number of acceptors: " + acceptors);
+        this.acceptors = acceptors;
+    }
+
+    /**
+     * Sets whether each {@link #setAcceptors acceptor} has its own server socket
+     * bound to the same port, using the SO_REUSEPORT socket option, so that the
+     * kernel distributes incoming connections among them (e.g. on Linux).
+     * The option is supported only on some platforms, and since Java 9.
+     *
+     * @param reusePort specifies whether each acceptor has its own server socket
+     */
+    public void setReusePort(boolean reusePort) { this.reusePort = reusePort; }
+
+    /**
+     * Returns the total number of connections accepted by each acceptor
+     * since the server was started.
+     *
+     * @return the number of accepted connections per acceptor,
+     *         or an empty array if the server is not started
+     */
+    public long[] getAcceptCounts() {
+        AcceptorThread[] threads = acceptorThreads;
+        long[] counts = new long[threads == null ? 0 : threads.length];
+        for (int i = 0; i < counts.length; i++)
+            counts[i] = threads[i].getAcceptCount();
+        return counts;
+    }
+
+    /**
+     * Returns the number of connections accepted by each acceptor
+     * during the previous (whole) second.
+     *
+     * @return the number of connections accepted during the previous
+     *         second per acceptor, or an empty array if the server is not started
+     */
+    public long[] getAcceptRates() {
+        AcceptorThread[] threads = acceptorThreads;
+        long[] rates = new long[threads == null ? 0 : threads.length];
+        for (int i = 0; i < rates.length; i++)
+            rates[i] = threads[i].getAcceptRate();
+        return rates;
+    }
+
+    /**
+     * Sets a bound on the default executor, so that the server sheds load
+     * rather than creating an unbounded number of threads when overloaded.
+     * <p>
+     * At most the given number of worker threads handle connections concurrently
+     * (in {@link #setNonBlocking non-blocking mode}, they handle requests, while
+     * idle connections do not occupy a worker). Once they are all busy, up to the
+     * given number of pending connections wait in a queue. Any further connections
+     * are rejected: they are sent a pre-encoded 503 (Service Unavailable) response
+     * with a {@link #setRetryAfter Retry-After} header and closed, without their
+     * request being read. Rejection is also applied when a custom executor rejects
+     * a connection.
+     * <p>
+     * This setting does not apply if an {@link #setExecutor executor} is set,
+     * and takes precedence over {@link #setVirtualThreads virtual threads}.
+     *
+     * @param workers the maximum number of worker threads, or zero for
+     *        an unbounded executor (the default)
+     * @param queueSize the maximum number of pending connections
+     * @throws IllegalArgumentException if a given value is negative
+     */
+    public void setMaxWorkers(int workers, int queueSize) {
+        if (workers < 0 || queueSize < 0)
+            throw new IllegalArgumentException("invalid bounds: " + workers + ", " + queueSize);
+        this.maxWorkers = workers;
+        this.workQueueSize = queueSize;
+    }
+
+    /**
+     * Sets the Retry-After header value sent in rejected connections' 503 responses.
+     *
+     * @param seconds the number of seconds after which the client may retry
+     * @see #setMaxWorkers
+     */
+    public void setRetryAfter(int seconds) { this.retryAfter = seconds; }
+
+    /**
+     * Returns the number of connections (or, in non-blocking mode, requests)
+     * waiting in the default bounded executor's queue for a worker thread.
+     *
+     * @return the number of pending connections, or zero if
+     *         the executor does not have a queue
+     * @see #setMaxWorkers
+     */
+    public int getQueueDepth() {
+        Executor executor = this.executor;
+        return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)executor).getQueue().size() : 0;
+    }
+
+    /**
+     * Returns the total number of connections which were rejected
+     * due to overload since the server was created.
+     *
+     * @return the number of rejected connections
+     * @see #setMaxWorkers
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Sets the executor used in servicing HTTP connections.
+     * If null, a default executor is used. The caller is responsible
+     * for shutting down the provided executor when necessary.
+     *
+     * @param executor the executor to use
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Sets whether the default executor handles each connection in its own
+     * virtual thread, which allows for many concurrent (slow) connections without
+     * the overhead of platform threads. This setting has no effect if an explicit
+     * {@link #setExecutor executor} is set, or if the JVM does not support virtual
+     * threads (they were introduced in Java 21), in which case a regular thread
+     * pool is used.
+     *
+     * @param virtualThreads specifies whether virtual threads are used if supported
+     * @see #createVirtualThreadExecutor()
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Sets the pool from which connection buffers are taken. A pool of direct
+     * buffers avoids copying data between the heap and native memory when
+     * reading and writing plain socket channels. The buffer size is also the
+     * maximum request head size that is received before a connection is
+     * dispatched in {@link #setNonBlocking non-blocking mode}.
+     *
+     * @param pool the buffer pool
+     * @throws NullPointerException if the given pool is null
+     */
+    public void setBufferPool(BufferPool pool) {
+        if (pool == null)
+            throw new NullPointerException("pool is null");
+        this.bufferPool = pool;
+    }
+
+    /**
+     * Sets the size of the buffer in which small writes to a chunked response
+     * body are coalesced, so that they are sent as fewer, larger chunks
+     * (e.g. the small blocks written by a compressing stream).
+     *
+     * @param size the buffer size, or zero if each write is sent as a separate chunk
+     * @throws IllegalArgumentException if the given size is negative
+     */
+    public void setChunkBufferSize(int size) {
+        if (size < 0)
+            throw new IllegalArgumentException("invalid size: " + size);
+        this.chunkBufferSize = size;
+    }
+
+    /**
+     * Sets the cache used to reuse compressed response bodies, for responses
+     * which are sent with a cache key (including files served from disk).
+     *
+     * @param cache the cache, or null if compressed bodies should not be cached
+     * @see Response#send(int, byte[], long, String, String, long[], String)
+     */
+    public void setCompressionCache(CompressionCache cache) {
+        this.compressionCache = cache;
+    }
+
+    /**
+     * Sets the policy which decides whether and how response bodies are compressed.
+     *
+     * @param policy the policy
+     */
+    public void setCompressionPolicy(CompressionPolicy policy) {
+        this.compressionPolicy = policy;
+    }
+
+    /**
+     * Returns the policy which decides whether and how response bodies are compressed.
+     *
+     * @return the policy
+     */
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    /**
+     * Sets an executor which compresses response bodies in parallel blocks
+     * (see {@link ParallelDeflaterOutputStream}), so that large compressed bodies
+     * are compressed on multiple cores, and the threads serving requests spend
+     * less time compressing. This applies to bodies that are compressed while
+     * being sent (not to those in the {@link #setCompressionCache compression cache}).
+     * <p>
+     * The executor should be bounded and separate from the {@link #setExecutor
+     * executor} which handles connections, e.g. one created by
+     * {@link ParallelDeflaterOutputStream#createExecutor}.
+     *
+     * @param executor the executor, or null to compress each body sequentially
+     *        by the thread writing it (the default)
+     * @param blockSize the size of each compressed block (at least 32K),
+     *        e.g. 128K; smaller bodies are compressed by the writing thread
+     * @param parallelism the maximum number of blocks that may be pending
+     *        per response at any time, e.g. the executor's number of threads
+     * @throws IllegalArgumentException if a size is invalid
+     */
+    public void setCompressionExecutor(Executor executor, int blockSize, int parallelism) {
+        if (blockSize < ParallelDeflaterOutputStream.WINDOW_SIZE || parallelism < 1)
+            throw new IllegalArgumentException("invalid sizes: " + blockSize + ", " + parallelism);
+        this.compressionBlockSize = blockSize;
+        this.compressionParallelism = parallelism;
+        this.compressionExecutor = executor;
+    }
+
+    /**
+     * Sets the pool from which Deflaters used in compressing response bodies are taken.
+     *
+     * @param pool the pool
+     */
+    public void setDeflaterPool(DeflaterPool pool) {
+        this.deflaterPool = pool;
+    }
+
+    /**
+     * Returns the pool from which Deflaters used in compressing response bodies
+     * are taken, which also provides compression metrics.
+     *
+     * @return the pool
+     */
+    public DeflaterPool getDeflaterPool() {
+        return deflaterPool;
     }
 
     /**
-     * Sets the socket timeout for established connections.
+     * Sets the compression level and strategy used in compressing response
+     * bodies of the given content types, or by default if none are given.
+     * The content types may contain a prefix or suffix wildcard (e.g. "text/*"
+     * or "*+xml"), and an exact content type match takes precedence over them.
      *
-     * @param timeout the socket timeout in milliseconds
+     * @param level the compression level (0-9 or {@link Deflater#DEFAULT_COMPRESSION})
+     * @param strategy the compression strategy (e.g. {@link Deflater#DEFAULT_STRATEGY}
+     *        or {@link Deflater#FILTERED})
+     * @param contentTypes the content types to which the settings apply,
+     *        or none to set the default settings
+     * @throws IllegalArgumentException if the level or strategy is invalid
      */
-    public void setSocketTimeout(int timeout) { this.socketTimeout = timeout; }
+    public void setCompressionLevel(int level, int strategy, String... contentTypes) {
+        if (level < -1 || level > 9)
+            throw new IllegalArgumentException("invalid level: " + level);
+        if (strategy != Deflater.DEFAULT_STRATEGY && strategy != Deflater.FILTERED
+                && strategy != Deflater.HUFFMAN_ONLY)
+            throw new IllegalArgumentException("invalid strategy: " + strategy);
+        int[] params = { level, strategy };
+        if (contentTypes.length == 0)
+            compressionParams = params;
+        for (String ct : contentTypes)
+            contentCompressionParams.put(ct.toLowerCase(Locale.US), params);
+    }
 
     /**
-     * Sets the executor used in servicing HTTP connections.
-     * If null, a default executor is used. The caller is responsible
-     * for shutting down the provided executor when necessary.
+     * Returns the compression level and strategy used in compressing
+     * response bodies of the given content type.
      *
-     * @param executor the executor to use
+     * @param contentType the content type (may include parameters), or null
+     * @return the compression level and strategy
      */
-    public void setExecutor(Executor executor) {
-        this.executor = executor;
+    protected int[] getCompressionParams(String contentType) {
+        if (contentType == null || contentCompressionParams.isEmpty())
+            return compressionParams;
+        int pos = contentType.indexOf(';'); // exclude params
+        String ct = (pos < 0 ? contentType : contentType.substring(0, pos)).trim().toLowerCase(Locale.US);
+        int[] params = contentCompressionParams.get(ct);
+        if (params == null)
+            for (Map.Entry<String, int[]> e : contentCompressionParams.entrySet())
+                if (matchContentType(e.getKey(), ct))
+                    return e.getValue();
+        return params != null ? params : compressionParams;
     }
 
     /**
@@ -2008,17 +6626,107 @@ public class HTTPServer {
      * {@link #setServerSocketFactory ServerSocketFactory} and {@link #setPort port}.
      * <p>
      * Cryptic errors seen here often mean the factory configuration details are wrong.
+     * <p>
+     * If the default factory is used, the server socket is created from a
+     * {@link ServerSocketChannel}, so that the accepted (plain) sockets have
+     * channels which can be used for zero-copy file transfers.
      *
      * @return the created server socket
      * @throws IOException if the socket cannot be created
      */
     protected ServerSocket createServerSocket() throws IOException {
-        ServerSocket serv = serverSocketFactory.createServerSocket();
-        serv.setReuseAddress(true);
-        serv.bind(new InetSocketAddress(port));
+        ServerSocket serv = serverSocketFactory == ServerSocketFactory.getDefault()
+            ? ServerSocketChannel.open().socket() : serverSocketFactory.createServerSocket();
+        try {
+            serv.setReuseAddress(true);
+            if (reusePort)
+                enableReusePort(serv);
+            serv.bind(new InetSocketAddress(port));
+        } catch (IOException ioe) {
+            serv.close();
+            throw ioe;
+        }
         return serv;
     }
 
+    /**
+     * Enables the SO_REUSEPORT option on the given (unbound) server socket.
+     * Since the server is compiled for older Java versions, the option
+     * is set using reflection if it is supported by the running JVM.
+     *
+     * @param serv the server socket
+     * @throws IOException if the option is not supported or cannot be set
+     */
+    protected static void enableReusePort(ServerSocket serv) throws IOException {
+        try {
+            Object option = StandardSocketOptions.class.getField("SO_REUSEPORT").get(null); // Java 9+
+            Object target = serv.getChannel() != null ? serv.getChannel() : serv;
+            Class<?> cls = serv.getChannel() != null ? NetworkChannel.class : ServerSocket.class;
+            cls.getMethod("setOption", SocketOption.class, Object.class).invoke(target, option, Boolean.TRUE);
+        } catch (InvocationTargetException ite) {
+            Throwable cause = ite.getCause();
+            throw cause instanceof IOException ? (IOException)cause
+                : new IOException("SO_REUSEPORT is not supported: " + cause);
+        } catch (Exception e) {
+            throw new IOException("SO_REUSEPORT is not supported: " + e);
+        }
+    }
+
+    /**
+     * Creates the SSL engine which secures a connection in
+     * {@link #setNonBlocking non-blocking mode}. Subclasses may override
+     * this method to configure the engine, e.g. its enabled protocols
+     * and cipher suites, or client authentication.
+     *
+     * @param context the SSL context
+     * @param channel the connection's socket channel
+     * @return the SSL engine (in server mode)
+     * @throws IOException if an error occurs
+     */
+    protected SSLEngine createSSLEngine(SSLContext context, SocketChannel channel) throws IOException {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        return engine;
+    }
+
+    /**
+     * Creates the server channel used to accept connections in
+     * {@link #setNonBlocking non-blocking mode}, using the configured
+     * {@link #setPort port}.
+     *
+     * @return the created server channel (in non-blocking mode)
+     * @throws IOException if the channel cannot be created
+     */
+    protected ServerSocketChannel createServerSocketChannel() throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.socket().setReuseAddress(true);
+            if (reusePort)
+                enableReusePort(channel.socket());
+            channel.socket().bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+        } catch (IOException ioe) {
+            channel.close();
+            throw ioe;
+        }
+        return channel;
+    }
+
+    /**
+     * Creates an executor which runs each task in a new virtual thread.
+     * Since the server is compiled for older Java versions, the executor
+     * is created using reflection if it is supported by the running JVM.
+     *
+     * @return the created executor, or null if virtual threads are not supported
+     */
+    protected static Executor createVirtualThreadExecutor() {
+        try {
+            return (Executor)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null; // not supported by this JVM (prior to Java 21)
+        }
+    }
+
     /**
      * Starts this server. If it is already started, does nothing.
      * Note: Once the server is started, configuration-altering methods
@@ -2031,8 +6739,57 @@ public class HTTPServer {
         if (serv != null)
             return;
         if (serverSocketFactory == null) // assign default server socket factory if needed
-            serverSocketFactory = ServerSocketFactory.getDefault(); // plain sockets
-        serv = createServerSocket();
+            serverSocketFactory = sslContext != null && !nonBlocking
+                ? sslContext.getServerSocketFactory() : ServerSocketFactory.getDefault(); // plain sockets
+        if (nonBlocking && serverSocketFactory != ServerSocketFactory.getDefault())
+            throw new IOException("non-blocking mode does not support a custom ServerSocketFactory");
+        if (sslContext != null && sessionCacheSize >= 0) { // configure session cache
+            SSLSessionContext sessions = sslContext.getServerSessionContext();
+            sessions.setSessionCacheSize(sessionCacheSize);
+            sessions.setSessionTimeout(sessionTimeout);
+        }
+        // create acceptors, each with its own server socket or sharing the first one
+        AcceptorThread[] threads = new AcceptorThread[acceptors];
+        try {
+            for (int i = 0; i < threads.length; i++) {
+                if (nonBlocking) {
+                    ServerSocketChannel channel = i == 0 || reusePort
+                        ? createServerSocketChannel() : ((SelectorThread)threads[0]).serverChannel;
+                    try {
+                        threads[i] = new SelectorThread(channel, i);
+                    } catch (IOException ioe) {
+                        channel.close();
+                        throw ioe;
+                    }
+                } else {
+                    threads[i] = new SocketHandlerThread(
+                        i == 0 || reusePort ? createServerSocket() : threads[0].serv, i);
+                }
+            }
+        } catch (IOException ioe) {
+            for (AcceptorThread thread : threads) {
+                if (thread != null) {
+                    thread.serv.close();
+                    if (thread instanceof SelectorThread)
+                        ((SelectorThread)thread).selector.close();
+                }
+            }
+            throw ioe;
+        }
+        serv = threads[0].serv;
+        acceptorThreads = threads;
+        // RFC7231#7.1.1.2: the Date header may be omitted in 5xx responses, so it can be pre-encoded
+        rejection = getBytes("HTTP/1.1 503 ", statuses[503], "\r\nRetry-After: ", Integer.toString(retryAfter),
+            "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+        if (executor == null && maxWorkers > 0) { // use bounded executor if requested
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(maxWorkers, maxWorkers, 60, TimeUnit.SECONDS,
+                workQueueSize > 0 ? new ArrayBlockingQueue<Runnable>(workQueueSize)
+                                  : new SynchronousQueue<Runnable>());
+            pool.allowCoreThreadTimeOut(true); // consumes no resources when idle
+            executor = pool;
+        }
+        if (executor == null && virtualThreads) // use virtual threads if requested and supported
+            executor = createVirtualThreadExecutor();
         if (executor == null) // assign default executor if needed
             executor = Executors.newCachedThreadPool(); // consumes no resources when idle
         // register all host aliases (which may have been modified)
@@ -2040,7 +6797,8 @@ public class HTTPServer {
             for (String alias : host.getAliases())
                 hosts.put(alias, host);
         // start handling incoming connections
-        new SocketHandlerThread().start();
+        for (Thread thread : threads)
+            thread.start();
     }
 
     /**
@@ -2048,11 +6806,119 @@ public class HTTPServer {
      * Note that if an {@link #setExecutor Executor} was set, it must be closed separately.
      */
     public synchronized void stop() {
+        AcceptorThread[] threads = acceptorThreads;
+        if (threads != null) {
+            for (AcceptorThread thread : threads) {
+                try {
+                    thread.serv.close(); // (which may be shared)
+                } catch (IOException ignore) {}
+                if (thread instanceof SelectorThread) // release the channel's registration promptly
+                    ((SelectorThread)thread).selector.wakeup();
+            }
+        }
+        acceptorThreads = null;
+        serv = null;
+        if (lingerThread != null)
+            lingerThread.shutdown();
+        lingerThread = null;
+    }
+
+    /**
+     * Performs the TLS handshake on a secure socket (in blocking mode)
+     * before its requests are read, and records it in the
+     * {@link #getHandshakeMetrics handshake metrics}.
+     *
+     * @param sock the socket
+     * @throws IOException if an error occurs
+     */
+    protected void handshake(SSLSocket sock) throws IOException {
+        long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        try {
+            sock.startHandshake();
+        } catch (IOException ioe) {
+            handshakeMetrics.recordFailure();
+            throw ioe;
+        }
+        handshakeMetrics.record(sock.getSession(), start, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Rejects a connection which cannot be handled due to overload, by sending
+     * a pre-encoded 503 (Service Unavailable) response and closing it, without
+     * reading its request. This is called by the accepting thread, so the response
+     * is sent only on plain sockets, where the small write does not block.
+     * Sockets with a channel are then closed by the {@link #linger linger thread},
+     * so that the unread request does not reset the connection.
+     *
+     * @param sock the connection's socket
+     */
+    protected void reject(Socket sock) {
+        rejected.incrementAndGet();
+        boolean linger = false;
         try {
-            if (serv != null)
-                serv.close();
+            try {
+                if (!(sock instanceof SSLSocket)) { // would require a handshake
+                    sock.getOutputStream().write(rejection);
+                    sock.shutdownOutput();
+                    linger = sock.getChannel() != null;
+                }
+            } finally {
+                if (linger)
+                    linger(sock.getChannel());
+                else
+                    sock.close();
+            }
+        } catch (IOException ignore) {}
+    }
+
+    /**
+     * Rejects a connection in {@link #setNonBlocking non-blocking mode} which cannot
+     * be handled due to overload, as in {@link #reject(Socket)}. This is called
+     * by the selector thread, so the response is written without waiting.
+     *
+     * @param conn the connection
+     */
+    protected void reject(ChannelConnection conn) {
+        rejected.incrementAndGet();
+        try {
+            if (conn.tls == null) { // would require a handshake
+                conn.channel.write(ByteBuffer.wrap(rejection)); // non-blocking
+                conn.channel.shutdownOutput();
+                conn.key.cancel();
+                conn.release();
+                linger(conn.channel);
+                return;
+            }
+        } catch (IOException ignore) {}
+        conn.close();
+    }
+
+    /**
+     * Closes a rejected connection once the client closes it or a short linger
+     * time elapses, discarding any incoming data in the meantime.
+     *
+     * @param channel the connection's channel, whose output was already shut down
+     * @see LingerThread
+     */
+    protected void linger(SocketChannel channel) {
+        synchronized (this) {
+            if (lingerThread == null && serv != null) {
+                try {
+                    lingerThread = new LingerThread();
+                    lingerThread.start();
+                } catch (IOException ioe) {
+                    lingerThread = null;
+                }
+            }
+            if (lingerThread != null) {
+                lingerThread.linger(channel);
+                return;
+            }
+        }
+        try {
+            channel.close();
         } catch (IOException ignore) {}
-        serv = null;
     }
 
     /**
@@ -2067,40 +6933,230 @@ public class HTTPServer {
      * @throws IOException if an error occurs
      */
     protected void handleConnection(InputStream in, OutputStream out) throws IOException {
-        in = new BufferedInputStream(in, 4096);
-        out = new BufferedOutputStream(out, 4096);
-        Request req;
-        Response resp;
-        do {
-            // create request and response and handle transaction
-            req = null;
-            resp = new Response(out);
+        // note: we use unsynchronized buffered streams rather than BufferedInputStream
+        // and BufferedOutputStream, so that virtual threads are not pinned to their
+        // carrier threads while blocking on I/O within a synchronized method
+        // (streams which already are channel streams are used as-is);
+        // stream buffers are accessed as arrays, so they are taken from a heap pool
+        StreamChannel ch = new StreamChannel(in, out);
+        BufferPool pool = bufferPool.isDirect() ? BufferPool.getDefault() : bufferPool;
+        ByteBuffer inbuf = in instanceof ChannelInputStream ? null : pool.get();
+        ByteBuffer outbuf = out instanceof ChannelOutputStream ? null : pool.get();
+        try {
+            if (inbuf != null) {
+                inbuf.flip(); // empty buffer in read mode
+                in = new ChannelInputStream(ch, inbuf);
+            }
+            if (outbuf != null)
+                out = new ChannelOutputStream(ch, outbuf);
+            while (processTransaction(in, out)); // handle transactions until connection should close
+        } finally {
+            release(pool, out, inbuf, outbuf);
+        }
+    }
+
+    /**
+     * Returns a connection's buffers to the pool. If an asynchronous handler
+     * which may still use them (e.g. after it timed out) has not completed,
+     * they are released once it does.
+     *
+     * @param pool the pool
+     * @param out the connection's output stream
+     * @param bufs the buffers (which may be null)
+     */
+    protected static void release(final BufferPool pool, OutputStream out, final ByteBuffer... bufs) {
+        CompletableFuture<Integer> async = out instanceof ChannelOutputStream ? ((ChannelOutputStream)out).async : null;
+        if (async != null && !async.isDone()) {
+            async.whenComplete(new BiConsumer<Integer, Throwable>() {
+                public void accept(Integer status, Throwable error) {
+                    for (ByteBuffer buf : bufs)
+                        pool.release(buf);
+                }
+            });
+        } else {
+            for (ByteBuffer buf : bufs)
+                pool.release(buf);
+        }
+    }
+
+    /**
+     * Handles a single transaction on a connection, reading the request from
+     * the given stream and writing the response into the other.
+     *
+     * @param in the (buffered) stream from which the incoming request is read
+     * @param out the (buffered) stream into which the outgoing response is written
+     * @return true if the connection should persist for subsequent transactions,
+     *         or false if it should be closed
+     * @throws IOException if an error occurs
+     */
+    protected boolean processTransaction(InputStream in, OutputStream out) throws IOException {
+        // create request and response and handle transaction
+        Request req = null;
+        Response resp = new Response(out);
+        try {
+            req = new Request(in);
+            handleTransaction(req, resp);
+        } catch (Throwable t) { // unhandled errors (not normal error responses like 404)
+            return abortTransaction(req, resp, t);
+        }
+        if (req.pending != null) { // asynchronous handler
+            if (out instanceof ChannelOutputStream) // keep connection buffers until it completes
+                ((ChannelOutputStream)out).async = req.pending.toCompletableFuture();
+            ReadableByteChannel ch = in instanceof ChannelInputStream ? ((ChannelInputStream)in).ch : null;
+            if (ch instanceof ChannelConnection) { // release thread until handler completes
+                out.flush(); // don't hold back previous pipelined responses
+                ((ChannelConnection)ch).suspend(req, resp);
+                return false; // (the connection remains open)
+            }
+            Integer status = null;
+            Throwable error = null;
             try {
-                req = new Request(in);
-                handleTransaction(req, resp);
-            } catch (Throwable t) { // unhandled errors (not normal error responses like 404)
-                if (req == null) { // error reading request
-                    if (t instanceof IOException && t.getMessage().contains("missing request line"))
-                        break; // we're not in the middle of a transaction - so just disconnect
-                    resp.getHeaders().add("Connection", "close"); // about to close connection
-                    if (t instanceof InterruptedIOException) // e.g. SocketTimeoutException
-                        resp.sendError(408, "Timeout waiting for client request");
-                    else
-                        resp.sendError(400, "Invalid request: " + t.getMessage());
-                } else if (!resp.headersSent()) { // if headers were not already sent, we can send an error response
-                    resp = new Response(out); // ignore whatever headers may have already been set
-                    resp.getHeaders().add("Connection", "close"); // about to close connection
+                int timeout = getAsyncTimeout(req);
+                Future<Integer> result = req.pending.toCompletableFuture();
+                status = timeout > 0 ? result.get(timeout, TimeUnit.MILLISECONDS) : result.get();
+            } catch (ExecutionException ee) {
+                error = ee.getCause();
+            } catch (Exception e) { // timeout or interrupted
+                error = e;
+            }
+            return resumeTransaction(in, req, resp, status, error);
+        }
+        return completeTransaction(in, req, resp);
+    }
+
+    /**
+     * Resumes a transaction whose {@link AsyncContextHandler asynchronous handler}
+     * has completed (or timed out), and completes it.
+     *
+     * @param in the stream from which the request was read
+     * @param req the transaction request
+     * @param resp the transaction response
+     * @param status the status with which the handler completed
+     * @param error the exception with which the handler completed, or null
+     * @return true if the connection should persist for subsequent transactions,
+     *         or false if it should be closed
+     * @throws IOException if an error occurs
+     */
+    protected boolean resumeTransaction(InputStream in, Request req, Response resp,
+            Integer status, Throwable error) throws IOException {
+        if (!req.pending.toCompletableFuture().isDone()) { // timed out
+            OutputStream out = resp.fence(); // cut off the handler before using the connection
+            if (resp.headersSent()) { // partial response can't be completed, so just send what we have
+                out.flush();
+                return false;
+            }
+        }
+        try {
+            if (error instanceof CompletionException && error.getCause() != null)
+                error = error.getCause(); // thrown by a dependent stage
+            if (error != null)
+                throw error;
+            if (status > 0)
+                resp.sendError(status);
+        } catch (Throwable t) { // unhandled errors (not normal error responses like 404)
+            return abortTransaction(req, resp, t);
+        }
+        return completeTransaction(in, req, resp);
+    }
+
+    /**
+     * Aborts a transaction due to an unhandled error, sending
+     * an error response if possible.
+     *
+     * @param req the transaction request, or null if it could not be read
+     * @param resp the transaction response
+     * @param t the error
+     * @return false, as the connection should be closed
+     * @throws IOException if an error occurs
+     */
+    protected boolean abortTransaction(Request req, Response resp, Throwable t) throws IOException {
+        try {
+            if (req == null) { // error reading request
+                if (t instanceof IOException && t.getMessage().contains("missing request line"))
+                    return false; // we're not in the middle of a transaction - so just disconnect
+                resp.getHeaders().add("Connection", "close"); // about to close connection
+                if (t instanceof InterruptedIOException) // e.g. SocketTimeoutException
+                    resp.sendError(408, "Timeout waiting for client request");
+                else
+                    resp.sendError(400, "Invalid request: " + t.getMessage());
+            } else if (!resp.headersSent()) { // if headers were not already sent, we can send an error response
+                resp = new Response(resp.fence()); // ignore whatever headers may have already been set
+                resp.getHeaders().add("Connection", "close"); // about to close connection
+                if (t instanceof TimeoutException) // asynchronous handler did not complete in time
+                    resp.sendError(503, "Timeout waiting for request processing");
+                else
                     resp.sendError(500, "Error processing request: " + t.getMessage());
-                } // otherwise just abort the connection since we can't recover
-                break; // proceed to close connection
-            } finally {
-                resp.close(); // close response and flush output
+            } // otherwise just abort the connection since we can't recover
+            return false; // proceed to close connection
+        } finally {
+            resp.close(true); // close response and flush output
+        }
+    }
+
+    /**
+     * Completes a transaction which was handled successfully, preparing
+     * the connection for its next transaction.
+     *
+     * @param in the stream from which the request was read
+     * @param req the transaction request
+     * @param resp the transaction response
+     * @return true if the connection should persist for subsequent transactions,
+     *         or false if it should be closed
+     * @throws IOException if an error occurs
+     */
+    protected boolean completeTransaction(InputStream in, Request req, Response resp) throws IOException {
+        OutputStream out = resp.getOutputStream();
+        resp.close(false); // close response (flushing output is deferred, see below)
+        // consume any leftover body data so next request can be processed
+        // (flushing first unless it is already buffered, as the client may await the response)
+        InputStream body = req.getBody();
+        if (!(body instanceof LimitedInputStream && ((LimitedInputStream)body).limit <= in.available()))
+            out.flush();
+        transfer(body, null, -1);
+        // RFC7230#6.6: persist connection unless client or server close explicitly (or legacy client)
+        boolean alive = !"close".equalsIgnoreCase(req.getHeaders().get("Connection"))
+            && !"close".equalsIgnoreCase(resp.getHeaders().get("Connection")) && req.getVersion().endsWith("1.1");
+        // RFC7230#6.3.2: if the next pipelined request has already been received, defer
+        // the flush so that the responses are sent together (they are written in order)
+        if (!alive || !hasRequestHead(in))
+            out.flush();
+        return alive;
+    }
+
+    /**
+     * Returns whether the given stream's buffer already contains a complete
+     * request head, i.e. a request line and headers terminated by an empty line.
+     *
+     * @param in a connection stream
+     * @return whether the stream's buffer contains a complete request head
+     */
+    protected static boolean hasRequestHead(InputStream in) {
+        return in instanceof ChannelInputStream && hasRequestHead(((ChannelInputStream)in).buf);
+    }
+
+    /**
+     * Returns whether the unread data in the given buffer contains a complete
+     * request head, i.e. a request line and headers terminated by an empty line.
+     *
+     * @param buf a buffer in read mode
+     * @return whether the buffer contains a complete request head
+     */
+    protected static boolean hasRequestHead(ByteBuffer buf) {
+        int i = buf.position();
+        int end = buf.limit();
+        // RFC2616#4.1: should accept empty lines before request line
+        while (i < end && (buf.get(i) == '\r' || buf.get(i) == '\n'))
+            i++;
+        for (; i < end; i++) {
+            if (buf.get(i) == '\n') {
+                int j = i + 1;
+                if (j < end && buf.get(j) == '\r')
+                    j++;
+                if (j < end && buf.get(j) == '\n')
+                    return true;
             }
-            // consume any leftover body data so next request can be processed
-            transfer(req.getBody(), null, -1);
-            // RFC7230#6.6: persist connection unless client or server close explicitly (or legacy client)
-        } while (!"close".equalsIgnoreCase(req.getHeaders().get("Connection"))
-            && !"close".equalsIgnoreCase(resp.getHeaders().get("Connection")) && req.getVersion().endsWith("1.1"));
+        }
+        return false;
     }
 
     /**
@@ -2225,14 +7281,51 @@ public class HTTPServer {
      * @param resp the response into which the content is written
      * @throws IOException if an error occurs
      */
-    protected void serve(Request req, Response resp) throws IOException {
+    protected void serve(final Request req, final Response resp) throws IOException {
         // get context handler to handle request
-        ContextHandler handler = req.getContext().getHandlers().get(req.getMethod());
+        VirtualHost.ContextInfo context = req.getContext();
+        final ContextHandler handler = context.getHandlers().get(req.getMethod());
         if (handler == null) {
             resp.sendError(404);
             return;
         }
-        // serve request
+        // serve request, within the context's bulkhead if it has one
+        Bulkhead bulkhead = context.getBulkhead(req.getMethod());
+        int status;
+        if (bulkhead == null) {
+            if (handler instanceof AsyncContextHandler) { // completed by processTransaction
+                resp.out = new FenceOutputStream(resp.out); // in case it times out
+                req.pending = ((AsyncContextHandler)handler).serveAsync(req, resp);
+                return;
+            }
+            status = serve(handler, req, resp);
+        } else {
+            Integer result = bulkhead.call(new Callable<Integer>() {
+                public Integer call() throws IOException {
+                    return serve(handler, req, resp);
+                }
+            });
+            if (result == null) { // bulkhead is full
+                resp.getHeaders().add("Retry-After", Integer.toString(retryAfter));
+                result = 503;
+            }
+            status = result;
+        }
+        if (status > 0)
+            resp.sendError(status);
+    }
+
+    /**
+     * Serves the content for a request using the given context handler,
+     * applying the virtual host's directory index if necessary.
+     *
+     * @param handler the context handler
+     * @param req the request
+     * @param resp the response into which the content is written
+     * @return the status returned by the handler
+     * @throws IOException if an error occurs
+     */
+    protected int serve(ContextHandler handler, Request req, Response resp) throws IOException {
         int status = 404;
         // add directory index if necessary
         String path = req.getPath();
@@ -2246,8 +7339,7 @@ public class HTTPServer {
         }
         if (status == 404)
             status = handler.serve(req, resp);
-        if (status > 0)
-            resp.sendError(status);
+        return status;
     }
 
     /**
@@ -2315,12 +7407,25 @@ public class HTTPServer {
         int pos = contentType.indexOf(';'); // exclude params
         String ct = pos < 0 ? contentType : contentType.substring(0, pos);
         for (String s : compressibleContentTypes)
-            if (s.equals(ct) || s.charAt(0) == '*' && ct.endsWith(s.substring(1))
-                || s.charAt(s.length() - 1) == '*' && ct.startsWith(s.substring(0, s.length() - 1)))
-                    return true;
+            if (matchContentType(s, ct))
+                return true;
         return false;
     }
 
+    /**
+     * Checks whether the given content type (MIME type) matches the given pattern.
+     *
+     * @param pattern the pattern, which may be a full content type or
+     *        have a prefix or suffix wildcard (e.g. "text/*" or "*+xml")
+     * @param ct the content type (without parameters)
+     * @return true if the content type matches the pattern, false if not
+     */
+    public static boolean matchContentType(String pattern, String ct) {
+        return pattern.equals(ct) || pattern.charAt(0) == '*' && ct.endsWith(pattern.substring(1))
+            || pattern.charAt(pattern.length() - 1) == '*'
+                && ct.startsWith(pattern.substring(0, pattern.length() - 1));
+    }
+
     /**
      * Returns the local host's auto-detected name.
      *
@@ -2503,6 +7608,40 @@ public class HTTPServer {
         return new String(s);
     }
 
+    /**
+     * Returns the encoded Date header line (including CRLF) with the current
+     * date. The line is shared and refreshed at most once per second, so that
+     * responses do not need to format the date each time. The returned
+     * array must not be modified.
+     *
+     * @return the encoded Date header line with the current date
+     */
+    public static byte[] getDateLine() {
+        long now = System.currentTimeMillis();
+        long time = now - Math.floorMod(now, 1000L); // whole seconds
+        if (dateLineTime == time)
+            return dateLine; // note: it is set before the time, so it is at least as recent
+        byte[] line = getBytes("Date: ", formatDate(time), "\r\n");
+        dateLine = line;
+        dateLineTime = time;
+        return line;
+    }
+
+    /**
+     * Returns the encoded HTTP/1.1 status line (including CRLF) of the given
+     * status. The line is created once and then reused. The returned
+     * array must not be modified.
+     *
+     * @param status the response status
+     * @return the encoded status line
+     */
+    public static byte[] getStatusLine(int status) {
+        byte[] line = statusLines[status];
+        if (line == null) // created once per status (a race only creates an equal one)
+            statusLines[status] = line = getBytes("HTTP/1.1 ", Integer.toString(status), " ", statuses[status], "\r\n");
+        return line;
+    }
+
     /**
      * Splits the given element list string (comma-separated header value)
      * into its constituent non-empty trimmed elements.
@@ -2692,6 +7831,23 @@ public class HTTPServer {
         return b;
     }
 
+    /**
+     * Rethrows the given throwable if it is an unchecked exception or error,
+     * or returns it as an IOException (wrapping it if necessary) otherwise.
+     * This allows callers to propagate exceptions thrown by arbitrary code
+     * while preserving their original type, e.g. {@code throw toIOException(t)}.
+     *
+     * @param t the throwable
+     * @return the throwable as an IOException
+     */
+    public static IOException toIOException(Throwable t) {
+        if (t instanceof RuntimeException)
+            throw (RuntimeException)t;
+        if (t instanceof Error)
+            throw (Error)t;
+        return t instanceof IOException ? (IOException)t : new IOException(t);
+    }
+
     /**
      * Transfers data from an input stream to an output stream.
      *
@@ -2705,18 +7861,25 @@ public class HTTPServer {
     public static void transfer(InputStream in, OutputStream out, long len) throws IOException {
         if (len == 0 || out == null && len < 0 && in.read() < 0)
             return; // small optimization - avoid buffer creation
-        byte[] buf = new byte[4096];
-        while (len != 0) {
-            int count = len < 0 || buf.length < len ? buf.length : (int)len;
-            count = in.read(buf, 0, count);
-            if (count < 0) {
-                if (len > 0)
-                    throw new IOException("unexpected end of stream");
-                break;
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer bb = pool.get();
+        try {
+            byte[] buf = bb.array();
+            int size = bb.capacity();
+            while (len != 0) {
+                int count = len < 0 || size < len ? size : (int)len;
+                count = in.read(buf, 0, count);
+                if (count < 0) {
+                    if (len > 0)
+                        throw new IOException("unexpected end of stream");
+                    break;
+                }
+                if (out != null)
+                    out.write(buf, 0, count);
+                len -= len > 0 ? count : 0;
             }
-            if (out != null)
-                out.write(buf, 0, count);
-            len -= len > 0 ? count : 0;
+        } finally {
+            pool.release(bb);
         }
     }
 
@@ -2740,28 +7903,50 @@ public class HTTPServer {
             String enc, int maxLength) throws IOException {
         // note: we avoid using a ByteArrayOutputStream here because it
         // suffers the overhead of synchronization for each byte written
-        int b;
-        int len = 0; // buffer length
-        int count = 0; // number of read bytes
-        byte[] buf = null; // optimization - lazy allocation only if necessary
-        while ((b = in.read()) != -1 && b != delim) {
-            if (count == len) { // expand buffer
-                if (count == maxLength)
-                    throw new IOException("token too large (" + count + ")");
-                len = len > 0 ? 2 * len : 256; // start small, double each expansion
-                len = maxLength < len ? maxLength : len;
-                byte[] expanded = new byte[len];
-                if (buf != null)
+        // (the initial buffer is pooled, and only larger tokens allocate expanded ones)
+        BufferPool pool = BufferPool.getDefault();
+        ByteBuffer bb = pool.get();
+        try {
+            int b = -1;
+            byte[] buf = bb.array();
+            int len = Math.min(bb.capacity(), maxLength); // buffer length
+            int count = 0; // number of read bytes
+            ChannelInputStream cin = delim != -1 && in instanceof ChannelInputStream
+                ? (ChannelInputStream)in : null; // scan its buffered data in bulk
+            while (cin != null || (b = in.read()) != -1 && b != delim) {
+                if (count == len) { // expand buffer
+                    if (count == maxLength) {
+                        if (cin != null && ((b = in.read()) == -1 || b == delim))
+                            break; // token ends exactly at the maximum length
+                        throw new IOException("token too large (" + count + ")");
+                    }
+                    len = Math.min(2 * len, maxLength); // double each expansion
+                    byte[] expanded = new byte[len];
                     System.arraycopy(buf, 0, expanded, 0, count);
-                buf = expanded;
+                    buf = expanded;
+                }
+                if (cin == null) {
+                    buf[count++] = (byte)b;
+                } else {
+                    int n = cin.readUntil(buf, count, len - count, delim);
+                    if (n < 0)
+                        break; // end of stream (b is -1)
+                    count += n;
+                    if (buf[count - 1] == (byte)delim) {
+                        count--; // exclude delimiter
+                        b = delim;
+                        break;
+                    }
+                }
             }
-            buf[count++] = (byte)b;
+            if (b < 0 && delim != -1)
+                throw new EOFException("unexpected end of stream");
+            if (delim == '\n' && count > 0 && buf[count - 1] == '\r')
+                count--;
+            return count > 0 ? new String(buf, 0, count, enc) : "";
+        } finally {
+            pool.release(bb);
         }
-        if (b < 0 && delim != -1)
-            throw new EOFException("unexpected end of stream");
-        if (delim == '\n' && count > 0 && buf[count - 1] == '\r')
-            count--;
-        return count > 0 ? new String(buf, 0, count, enc) : "";
     }
 
     /**
@@ -2791,6 +7976,8 @@ public class HTTPServer {
      *         or there are more than 100 header lines
      */
     public static Headers readHeaders(InputStream in) throws IOException {
+        if (in instanceof ChannelInputStream)
+            return readHeaders((ChannelInputStream)in);
         Headers headers = new Headers();
         String line;
         String prevLine = "";
@@ -2820,6 +8007,96 @@ public class HTTPServer {
         return headers;
     }
 
+    /**
+     * Reads headers from the given stream, as in {@link #readHeaders(InputStream)}.
+     * <p>
+     * The header lines are read in bulk into a single array, and the headers
+     * refer to their name and value bytes within it, so that no strings are
+     * created until a header's name or value is actually used. Only folded
+     * and repeated headers, which are rare, are processed as strings.
+     *
+     * @param in the stream from which the headers are read
+     * @return the read headers (possibly empty, if none exist)
+     * @throws IOException if an IO error occurs or the headers are malformed
+     *         or there are more than 100 header lines
+     */
+    protected static Headers readHeaders(ChannelInputStream in) throws IOException {
+        Headers headers = new Headers();
+        byte[] head = new byte[Math.min(Math.max(in.available(), 256), 16384)];
+        int end = 0; // end of read data in head
+        String prevLine = ""; // decoded lazily (null if not yet decoded)
+        int prevStart = 0, prevEnd = 0; // indices of previous line in head
+        int count = 0;
+        while (true) {
+            // read a line (at most 8192 bytes excluding LF, as in readLine)
+            int start = end;
+            do {
+                if (end == head.length)
+                    head = Arrays.copyOf(head, 2 * head.length);
+                int n = in.readUntil(head, end, Math.min(head.length, start + 8193) - end, '\n');
+                if (n < 0)
+                    throw new EOFException("unexpected end of stream");
+                end += n;
+                if (end - start == 8193 && head[end - 1] != '\n')
+                    throw new IOException("token too large (8192)");
+            } while (head[end - 1] != '\n');
+            int lineEnd = end - 1; // excluding LF
+            if (lineEnd > start && head[lineEnd - 1] == '\r')
+                lineEnd--; // and CR
+            if (lineEnd == start)
+                break; // empty line ends headers
+            if (Character.isWhitespace((char)(head[start] & 0xFF))) {
+                // unfold header continuation line (processed as strings)
+                if (prevLine == null)
+                    prevLine = new String(head, prevStart, prevEnd - prevStart, StandardCharsets.ISO_8859_1);
+                String line = new String(head, start, lineEnd - start, StandardCharsets.ISO_8859_1);
+                int i;
+                for (i = 0; i < line.length() && Character.isWhitespace(line.charAt(i)); i++);
+                line = prevLine + ' ' + line.substring(i);
+                int separator = line.indexOf(':');
+                if (separator < 0)
+                    throw new IOException("invalid header: \"" + line + "\"");
+                headers.replace(line.substring(0, separator), line.substring(separator + 1).trim());
+                prevLine = line;
+            } else {
+                int separator = start;
+                while (separator < lineEnd && head[separator] != ':')
+                    separator++;
+                if (separator == lineEnd)
+                    throw new IOException("invalid header: \""
+                        + new String(head, start, lineEnd - start, StandardCharsets.ISO_8859_1) + "\"");
+                // trim name and value (as in String.trim)
+                int nameStart = start, nameEnd = separator;
+                while (nameStart < nameEnd && (head[nameStart] & 0xFF) <= ' ')
+                    nameStart++;
+                while (nameEnd > nameStart && (head[nameEnd - 1] & 0xFF) <= ' ')
+                    nameEnd--;
+                if (nameStart == nameEnd)
+                    throw new IllegalArgumentException("name cannot be empty");
+                int valueStart = separator + 1, valueEnd = lineEnd;
+                while (valueStart < valueEnd && (head[valueStart] & 0xFF) <= ' ')
+                    valueStart++;
+                while (valueEnd > valueStart && (head[valueEnd - 1] & 0xFF) <= ' ')
+                    valueEnd--;
+                Header header = new Header(head, nameStart, nameEnd, valueStart, valueEnd);
+                Header replaced = headers.replace(header);
+                if (replaced != null) { // concatenate repeated headers
+                    String name = new String(head, start, separator - start, StandardCharsets.ISO_8859_1);
+                    String value = replaced.getValue() + ", " + header.getValue();
+                    headers.replace(name, value);
+                    prevLine = name + ": " + value;
+                } else {
+                    prevLine = null;
+                    prevStart = start;
+                    prevEnd = lineEnd;
+                }
+            }
+            if (++count > 100)
+                throw new IOException("too many header lines");
+        }
+        return headers;
+    }
+
     /**
      * Matches the given ETag value against the given ETags. A match is found
      * if the given ETag is not null, and either the ETags contain a "*" value,
@@ -2938,9 +8215,28 @@ public class HTTPServer {
      * @throws IOException if an error occurs
      */
     public static void serveFileContent(File file, Request req, Response resp) throws IOException {
-        long len = file.length();
-        long lastModified = file.lastModified();
-        String etag = "W/\"" + lastModified + "\""; // a weak tag based on date
+        serveFileContent(new FileCache.Entry(file, -1), req, resp);
+    }
+
+    /**
+     * Serves the contents of a file, with its corresponding content type,
+     * last modification time, etc. conditional and partial retrievals are
+     * handled according to the RFC. The file information and content
+     * (if available) are taken from the given (possibly cached) entry.
+     *
+     * @param entry the entry of the existing and readable file whose contents are served
+     * @param req the request
+     * @param resp the response into which the content is written
+     * @throws IOException if an error occurs
+     */
+    public static void serveFileContent(FileCache.Entry entry, Request req, Response resp) throws IOException {
+        // serve the precompressed file if there is one and the client accepts it
+        if (entry.gzip != null && Arrays.asList(
+                splitElements(req.getHeaders().get("Accept-Encoding"), true)).contains("gzip"))
+            entry = entry.gzip;
+        long len = entry.length;
+        long lastModified = entry.lastModified;
+        String etag = entry.etag;
         int status = 200;
         // handle range or conditional request
         long[] range = req.getRange(len);
@@ -2972,7 +8268,7 @@ public class HTTPServer {
             case 304: // no other headers or body allowed
                 respHeaders.add("ETag", etag);
                 respHeaders.add("Vary", "Accept-Encoding");
-                respHeaders.add("Last-Modified", formatDate(lastModified));
+                respHeaders.add("Last-Modified", entry.modified);
                 resp.sendHeaders(304);
                 break;
             case 412:
@@ -2984,10 +8280,24 @@ public class HTTPServer {
                 break;
             case 200:
                 // send OK response
-                resp.sendHeaders(200, len, lastModified, etag,
-                    getContentType(file.getName(), "application/octet-stream"), range);
-                // send body
-                InputStream in = new FileInputStream(file);
+                if (!respHeaders.contains("Last-Modified"))
+                    respHeaders.add("Last-Modified", entry.modified);
+                if (entry.encoding != null)
+                    respHeaders.add("Content-Encoding", entry.encoding); // with known length
+                // send content from memory if available, or if it will be compressed using the cache
+                byte[] content = entry.content;
+                if (content == null && range == null && resp.isCompressionCached(entry.contentType, len)) {
+                    // read the file only if its compressed body is not already cached
+                    if (resp.sendCached(200, len, lastModified, etag, entry.contentType, entry.file.getPath()))
+                        break;
+                    content = FileCache.Entry.read(entry.file, len, lastModified);
+                }
+                if (content != null) {
+                    resp.send(200, content, lastModified, etag, entry.contentType, range, entry.file.getPath());
+                    break;
+                }
+                resp.sendHeaders(200, len, lastModified, etag, entry.contentType, range);
+                InputStream in = new FileInputStream(entry.file);
                 try {
                     resp.sendBody(in, len, range);
                 } finally {